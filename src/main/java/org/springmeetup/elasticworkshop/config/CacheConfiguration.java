@@ -0,0 +1,70 @@
+package org.springmeetup.elasticworkshop.config;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springmeetup.elasticworkshop.model.ArtistDocument;
+import org.springmeetup.elasticworkshop.model.UserProfile;
+
+import java.time.Duration;
+import java.util.List;
+
+@Configuration
+public class CacheConfiguration {
+
+	@Value("${user-profile.cache.max-size:100000}")
+	private long userProfileCacheMaxSize;
+
+	@Value("${user-profile.cache.ttl-ms:60000}")
+	private long userProfileCacheTtlMs;
+
+	@Value("${search.candidate-cache.max-size:10000}")
+	private long artistCandidateCacheMaxSize;
+
+	@Value("${search.candidate-cache.ttl-ms:5000}")
+	private long artistCandidateCacheTtlMs;
+
+	/**
+	 * in-process near cache of user profiles used by personalized searches.
+	 * entries are invalidated when the profile is updated by this instance, TTL bounds the staleness of updates made by others
+	 * hit / miss / eviction counts are published as cache.* metrics with tag cache=user-profile
+	 *
+	 * @param meterRegistry
+	 * @return
+	 */
+	@Bean
+	public Cache<String, UserProfile> userProfileCache(MeterRegistry meterRegistry) {
+		Cache<String, UserProfile> cache = Caffeine.newBuilder()
+				.maximumSize(userProfileCacheMaxSize)
+				.expireAfterWrite(Duration.ofMillis(userProfileCacheTtlMs))
+				.recordStats()
+				.build();
+
+		return CaffeineCacheMetrics.monitor(meterRegistry, cache, "user-profile");
+	}
+
+	/**
+	 * short lived cache of non-personalized artist search results, keyed by query string and ranking option.
+	 * personalized searches re-rank these candidates with the user's boosts without querying elasticsearch.
+	 * the cache holds the futures of the searches, concurrent misses of a key share the search in flight
+	 *
+	 * @param meterRegistry
+	 * @return
+	 */
+	@Bean
+	public AsyncCache<String, List<ArtistDocument>> artistCandidateCache(MeterRegistry meterRegistry) {
+		AsyncCache<String, List<ArtistDocument>> cache = Caffeine.newBuilder()
+				.maximumSize(artistCandidateCacheMaxSize)
+				.expireAfterWrite(Duration.ofMillis(artistCandidateCacheTtlMs))
+				.recordStats()
+				.buildAsync();
+
+		return CaffeineCacheMetrics.monitor(meterRegistry, cache, "artist-candidates");
+	}
+
+}
@@ -5,7 +5,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springmeetup.elasticworkshop.service.EventProcessingService;
+import org.springmeetup.elasticworkshop.service.RankingWindowProcessor;
 
 @Configuration
 @EnableScheduling
@@ -13,10 +13,10 @@ import org.springmeetup.elasticworkshop.service.EventProcessingService;
 @Slf4j
 public class EventSchedulerConfiguration {
 
-	private final EventProcessingService eventProcessingService;
+	private final RankingWindowProcessor rankingWindowProcessor;
 
 	@Scheduled(cron = "${listen-event.scheduler.cron}")
 	public void runPartialIndexers() {
-		eventProcessingService.updateArtistRankings();
+		rankingWindowProcessor.processWindows();
 	}
 }
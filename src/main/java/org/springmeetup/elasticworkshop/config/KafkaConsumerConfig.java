@@ -1,5 +1,7 @@
 package org.springmeetup.elasticworkshop.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
@@ -10,35 +12,80 @@ import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
+import org.springframework.util.backoff.FixedBackOff;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
 
 import java.util.HashMap;
 import java.util.Map;
 
 @EnableKafka
 @Configuration
+@RequiredArgsConstructor
 @Slf4j
 public class KafkaConsumerConfig {
 
+	private final ObjectMapper objectMapper;
+
 	@Value(value = "${kafka.bootstrap.address}")
 	private String bootstrapAddress;
 
 	private String groupId = "listen-event-consumer-group";
 
+	@Value("${listen-event.consumer.concurrency:1}")
+	private int concurrency;
+
+	@Value("${listen-event.consumer.batch.enabled:false}")
+	private boolean batchEnabled;
+
+	@Value("${listen-event.consumer.batch.max-poll-records:5000}")
+	private int batchMaxPollRecords;
+
+	@Value("${listen-event.consumer.batch.fetch-min-bytes:1048576}")
+	private int batchFetchMinBytes;
+
+	@Value("${listen-event.consumer.batch.fetch-max-wait-ms:1000}")
+	private int batchFetchMaxWaitMs;
+
+	@Value("${listen-event.consumer.batch.retry-backoff-ms:5000}")
+	private long batchRetryBackoffMs;
+
 	@Bean
-	public ConsumerFactory<String, String> consumerFactory() {
+	public ConsumerFactory<String, ListenEvent> consumerFactory() {
 		Map<String, Object> props = new HashMap<>();
 		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
 		props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
-		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, true);
-		return new DefaultKafkaConsumerFactory<>(props);
+		// in batch mode offsets are committed manually, only after the bulk request of the poll succeeds
+		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, !batchEnabled);
+		if (batchEnabled) {
+			// a poll returns when either max poll records / fetch min bytes are reached or fetch max wait elapses,
+			// so every poll is flushed to elasticsearch by record count, byte count or time, whichever comes first
+			props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, batchMaxPollRecords);
+			props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, batchFetchMinBytes);
+			props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, batchFetchMaxWaitMs);
+		}
+		// json and binary listen events are both read, the format is detected per message
+		return new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(), new ListenEventDeserializer(objectMapper));
 	}
 
 	@Bean
-	public ConcurrentKafkaListenerContainerFactory<String, String> kafkaListenerContainerFactory() {
-		ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
+	public ConcurrentKafkaListenerContainerFactory<String, ListenEvent> kafkaListenerContainerFactory() {
+		ConcurrentKafkaListenerContainerFactory<String, ListenEvent> factory = new ConcurrentKafkaListenerContainerFactory<>();
 		factory.setConsumerFactory(consumerFactory());
+		// one consumer (thread) per container, partitions of the topic are shared among them.
+		// containers beyond the number of partitions stay idle
+		factory.setConcurrency(concurrency);
+
+		if (batchEnabled) {
+			factory.setBatchListener(true);
+			factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+
+			// re-deliver the whole poll until the bulk request succeeds, nothing is committed in between
+			SeekToCurrentBatchErrorHandler batchErrorHandler = new SeekToCurrentBatchErrorHandler();
+			batchErrorHandler.setBackOff(new FixedBackOff(batchRetryBackoffMs, FixedBackOff.UNLIMITED_ATTEMPTS));
+			factory.setBatchErrorHandler(batchErrorHandler);
+		}
 		return factory;
 	}
 
@@ -1,5 +1,7 @@
 package org.springmeetup.elasticworkshop.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Value;
@@ -8,27 +10,53 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
 
 import java.util.HashMap;
 import java.util.Map;
 
 @Configuration
+@RequiredArgsConstructor
 public class KafkaProducerConfig {
 
+	private final ObjectMapper objectMapper;
+
 	@Value(value = "${kafka.bootstrap.address}")
 	private String bootstrapAddress;
 
+	@Value("${kafka.producer.batch-size:65536}")
+	private int batchSize;
+
+	@Value("${kafka.producer.linger-ms:20}")
+	private int lingerMs;
+
+	@Value("${kafka.producer.compression-type:lz4}")
+	private String compressionType;
+
+	@Value("${kafka.producer.enable-idempotence:true}")
+	private boolean enableIdempotence;
+
+	@Value("${kafka.producer.listen-event.binary-format:false}")
+	private boolean listenEventBinaryFormat;
+
 	@Bean
-	public ProducerFactory<String, String> producerFactory() {
+	public ProducerFactory<String, ListenEvent> producerFactory() {
 		Map<String, Object> configProps = new HashMap<>();
 		configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
-		configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-		configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-		return new DefaultKafkaProducerFactory<>(configProps);
+		// records of a partition are sent in batches of up to batch size, waiting at most linger ms to fill a batch,
+		// and each batch is compressed as a whole
+		configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+		configProps.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+		configProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+		// retried batches are neither duplicated nor reordered, idempotence requires acks from all in-sync replicas
+		configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, enableIdempotence);
+		configProps.put(ProducerConfig.ACKS_CONFIG, "all");
+		// consumers of every version since the binary format read json, binary is to be enabled once all of them read it
+		return new DefaultKafkaProducerFactory<>(configProps, new StringSerializer(), new ListenEventSerializer(objectMapper, listenEventBinaryFormat));
 	}
 
 	@Bean
-	public KafkaTemplate<String, String> kafkaTemplate() {
+	public KafkaTemplate<String, ListenEvent> kafkaTemplate() {
 		return new KafkaTemplate<>(producerFactory());
 	}
 }
@@ -0,0 +1,126 @@
+package org.springmeetup.elasticworkshop.config;
+
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * compact binary encoding of a listen event on the listen-events topic
+ *
+ *  magic (1 byte) | version (1 byte) | flags (1 byte) | timestamp as epoch millis (8 bytes, if flagged) |
+ *  artist_id length (2 bytes) | artist_id utf-8 | user_id length (2 bytes) | user_id utf-8
+ *
+ * the magic byte is never the first byte of a json message, so binary and json messages can share the topic.
+ * a null id is written with the length 0xFFFF. the same encoding is used for the events of the local spill log
+ */
+public final class ListenEventBinaryCodec {
+
+	static final byte MAGIC = (byte) 0xB1;
+	static final byte VERSION = 1;
+
+	private static final int FLAG_TIMESTAMP = 1;
+	private static final int NULL_LENGTH = 0xFFFF;
+
+	private ListenEventBinaryCodec() {
+	}
+
+	public static boolean isBinary(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC;
+	}
+
+	public static byte[] encode(ListenEvent listenEvent) {
+		byte[] artistId = toBytes(listenEvent.getArtistId());
+		byte[] userId = toBytes(listenEvent.getUserId());
+		boolean hasTimestamp = listenEvent.getTimestamp() != null;
+
+		ByteBuffer buffer = ByteBuffer.allocate(3 + (hasTimestamp ? 8 : 0) + 2 + length(artistId) + 2 + length(userId));
+		buffer.put(MAGIC);
+		buffer.put(VERSION);
+		buffer.put((byte) (hasTimestamp ? FLAG_TIMESTAMP : 0));
+		if (hasTimestamp) {
+			buffer.putLong(listenEvent.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		}
+		putId(buffer, artistId);
+		putId(buffer, userId);
+
+		return buffer.array();
+	}
+
+	/**
+	 * ids are decoded in place from the message bytes, no other object than the event and its fields is created
+	 *
+	 * @param data
+	 * @return
+	 * @throws IllegalArgumentException if the message is not a listen event of a known version
+	 */
+	public static ListenEvent decode(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		try {
+			if (buffer.get() != MAGIC) {
+				throw new IllegalArgumentException("not a binary listen event");
+			}
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("unknown listen event version " + version);
+			}
+
+			int flags = buffer.get();
+			LocalDateTime timestamp = (flags & FLAG_TIMESTAMP) != 0
+					? LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneId.systemDefault())
+					: null;
+
+			return ListenEvent.builder()
+					.timestamp(timestamp)
+					.artistId(getId(buffer, data))
+					.userId(getId(buffer, data))
+					.build();
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("truncated listen event", e);
+		}
+	}
+
+	private static byte[] toBytes(String id) {
+		if (id == null) {
+			return null;
+		}
+
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= NULL_LENGTH) {
+			throw new IllegalArgumentException("listen event id is too long: " + bytes.length + " bytes");
+		}
+		return bytes;
+	}
+
+	private static int length(byte[] id) {
+		return id == null ? 0 : id.length;
+	}
+
+	private static void putId(ByteBuffer buffer, byte[] id) {
+		if (id == null) {
+			buffer.putShort((short) NULL_LENGTH);
+			return;
+		}
+
+		buffer.putShort((short) id.length);
+		buffer.put(id);
+	}
+
+	private static String getId(ByteBuffer buffer, byte[] data) {
+		int length = buffer.getShort() & 0xFFFF;
+		if (length == NULL_LENGTH) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new IllegalArgumentException("truncated listen event");
+		}
+
+		String id = new String(data, buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return id;
+	}
+}
@@ -0,0 +1,41 @@
+package org.springmeetup.elasticworkshop.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.io.IOException;
+
+/**
+ * reads listen events written either in the binary format of {@link ListenEventBinaryCodec} or as json,
+ * the format is detected per message by its first byte. json is parsed from the bytes, no string of the message is built.
+ * a message that cannot be read is logged and skipped (null), it must not block the partition
+ */
+@Slf4j
+public class ListenEventDeserializer implements Deserializer<ListenEvent> {
+
+	private final ObjectReader objectReader;
+
+	public ListenEventDeserializer(ObjectMapper objectMapper) {
+		this.objectReader = objectMapper.readerFor(ListenEvent.class);
+	}
+
+	@Override
+	public ListenEvent deserialize(String topic, byte[] data) {
+		if (data == null || data.length == 0) {
+			return null;
+		}
+
+		try {
+			if (ListenEventBinaryCodec.isBinary(data)) {
+				return ListenEventBinaryCodec.decode(data);
+			}
+			return objectReader.readValue(data);
+		} catch (IOException | IllegalArgumentException e) {
+			log.error("listen event of topic {} could not be deserialized", topic, e);
+			return null;
+		}
+	}
+}
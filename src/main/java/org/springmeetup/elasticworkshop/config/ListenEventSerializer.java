@@ -0,0 +1,36 @@
+package org.springmeetup.elasticworkshop.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+/**
+ * writes listen events either as json or in the binary format of {@link ListenEventBinaryCodec},
+ * consumers read both formats
+ */
+public class ListenEventSerializer implements Serializer<ListenEvent> {
+
+	private final ObjectWriter objectWriter;
+	private final boolean binary;
+
+	public ListenEventSerializer(ObjectMapper objectMapper, boolean binary) {
+		this.objectWriter = objectMapper.writerFor(ListenEvent.class);
+		this.binary = binary;
+	}
+
+	@Override
+	public byte[] serialize(String topic, ListenEvent listenEvent) {
+		if (listenEvent == null) {
+			return null;
+		}
+
+		try {
+			return binary ? ListenEventBinaryCodec.encode(listenEvent) : objectWriter.writeValueAsBytes(listenEvent);
+		} catch (JsonProcessingException | IllegalArgumentException e) {
+			throw new SerializationException("listen event could not be serialized", e);
+		}
+	}
+}
@@ -1,34 +1,36 @@
 package org.springmeetup.elasticworkshop.controller;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
-import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.web.bind.annotation.*;
 import org.springmeetup.elasticworkshop.model.ListenEvent;
-import org.springmeetup.elasticworkshop.service.Constants;
-import org.springmeetup.elasticworkshop.service.EventProcessingService;
+import org.springmeetup.elasticworkshop.model.ListenEventBatchResult;
+import org.springmeetup.elasticworkshop.service.ListenEventPublisher;
 
-import java.time.LocalDateTime;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 
 @RestController
 @RequestMapping("/event")
 @RequiredArgsConstructor
 public class EventController {
 
-	private final KafkaTemplate<String, String> kafkaTemplate;
-	private final ObjectMapper objectMapper;
+	private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+	private final ListenEventPublisher listenEventPublisher;
 
 	@PostMapping("/listen-event")
 	public void saveListenEvent(@RequestBody ListenEvent listenEvent,
-	                            @RequestParam(value = "eventCount", defaultValue = "1") int eventCount) throws JsonProcessingException {
-		if (listenEvent.getTimestamp() == null) {
-			listenEvent.setTimestamp(LocalDateTime.now());
-		}
-
-		for (int i = 0; i < eventCount; i++) {
-			kafkaTemplate.send(Constants.LISTEN_EVENT_TOPIC_NAME, objectMapper.writeValueAsString(listenEvent));
-		}
+	                            @RequestParam(value = "eventCount", defaultValue = "1") int eventCount) {
+		listenEventPublisher.publish(listenEvent, eventCount);
+	}
+
+	/**
+	 * newline delimited listen events, e.g. the listens buffered by a gateway. the body is parsed while it is read,
+	 * the response is returned once every event is acknowledged by kafka or has failed
+	 */
+	@PostMapping(value = "/listen-events", consumes = NDJSON_MEDIA_TYPE)
+	public ListenEventBatchResult saveListenEvents(HttpServletRequest request) throws IOException {
+		return listenEventPublisher.publishAll(request.getInputStream());
 	}
 
 }
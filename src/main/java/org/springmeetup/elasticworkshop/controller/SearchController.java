@@ -1,31 +1,127 @@
 package org.springmeetup.elasticworkshop.controller;
 
 import lombok.RequiredArgsConstructor;
-import org.elasticsearch.action.search.SearchResponse;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springmeetup.elasticworkshop.model.ArtistDocument;
+import org.springmeetup.elasticworkshop.model.ArtistScoringMode;
+import org.springmeetup.elasticworkshop.model.ArtistSearchPage;
+import org.springmeetup.elasticworkshop.model.ArtistSearchQuery;
 import org.springmeetup.elasticworkshop.service.ElasticSearchService;
 
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/search")
 @RequiredArgsConstructor
 public class SearchController {
 
+	private static final String PAGING_CURSOR = "cursor";
+	private static final String CURSOR_HEADER = "X-Search-Cursor";
+
 	private final ElasticSearchService elasticSearchService;
 
 	@GetMapping("/artist")
-	public List<ArtistDocument> searchArtists(@RequestParam(name = "q", required = true) String queryString,
+	public ResponseEntity<List<ArtistDocument>> searchArtists(@RequestParam(name = "q", required = true) String queryString,
 	                                          @RequestParam(name = "userid", required = false) String userId,
 	                                          @RequestParam(name = "includeRanking", required = false) boolean includeRanking,
 	                                          @RequestParam(name = "includeUserProfile", required = false) boolean includeUserProfile,
 	                                          @RequestParam(name = "from", required = false, defaultValue = "0") Integer from,
-	                                          @RequestParam(name = "size", required = false, defaultValue = "10") Integer size
+	                                          @RequestParam(name = "size", required = false, defaultValue = "10") Integer size,
+	                                          @RequestParam(name = "userProfileSize", required = false) Integer userProfileSize,
+	                                          @RequestParam(name = "scoringMode", required = false) ArtistScoringMode scoringMode,
+	                                          @RequestParam(name = "adaptiveQueryPlan", required = false) Boolean adaptiveQueryPlan,
+	                                          @RequestParam(name = "paging", required = false) String paging,
+	                                          @RequestParam(name = "cursor", required = false) String cursor
 	                                          ) {
-		return elasticSearchService.searchArtists(queryString, userId, includeRanking, includeUserProfile, from, size);
+		ArtistSearchQuery artistSearchQuery = ArtistSearchQuery.builder()
+				.queryString(queryString)
+				.userId(userId)
+				.includeRanking(includeRanking)
+				.includeUserProfile(includeUserProfile)
+				.from(from)
+				.size(size)
+				.userProfileSize(userProfileSize)
+				.scoringMode(scoringMode)
+				.adaptiveQueryPlan(adaptiveQueryPlan)
+				.build();
+
+		// cursor paging is started with paging=cursor and continued with the cursor header value of the previous page
+		if (PAGING_CURSOR.equals(paging) || cursor != null) {
+			ArtistSearchPage artistSearchPage = elasticSearchService.searchArtistsPage(artistSearchQuery, cursor);
+			ResponseEntity.BodyBuilder responseBuilder = ResponseEntity.ok();
+			if (artistSearchPage.getCursor() != null) {
+				responseBuilder.header(CURSOR_HEADER, artistSearchPage.getCursor());
+			}
+			return responseBuilder.body(artistSearchPage.getArtists());
+		}
+
+		return ResponseEntity.ok(elasticSearchService.searchArtists(artistSearchQuery));
+	}
+
+	/**
+	 * same search as /artist, the servlet thread is released right away and the response is written
+	 * once the async elasticsearch requests complete
+	 */
+	@GetMapping("/artist/async")
+	public DeferredResult<List<ArtistDocument>> searchArtistsAsync(@RequestParam(name = "q", required = true) String queryString,
+	                                                               @RequestParam(name = "userid", required = false) String userId,
+	                                                               @RequestParam(name = "includeRanking", required = false) boolean includeRanking,
+	                                                               @RequestParam(name = "includeUserProfile", required = false) boolean includeUserProfile,
+	                                                               @RequestParam(name = "from", required = false, defaultValue = "0") Integer from,
+	                                                               @RequestParam(name = "size", required = false, defaultValue = "10") Integer size,
+	                                                               @RequestParam(name = "userProfileSize", required = false) Integer userProfileSize,
+	                                                               @RequestParam(name = "scoringMode", required = false) ArtistScoringMode scoringMode,
+	                                                               @RequestParam(name = "adaptiveQueryPlan", required = false) Boolean adaptiveQueryPlan
+	                                                               ) {
+		DeferredResult<List<ArtistDocument>> deferredResult = new DeferredResult<>();
+
+		elasticSearchService.searchArtistsAsync(ArtistSearchQuery.builder()
+				.queryString(queryString)
+				.userId(userId)
+				.includeRanking(includeRanking)
+				.includeUserProfile(includeUserProfile)
+				.from(from)
+				.size(size)
+				.userProfileSize(userProfileSize)
+				.scoringMode(scoringMode)
+				.adaptiveQueryPlan(adaptiveQueryPlan)
+				.build())
+				.whenComplete((result, failure) -> {
+					if (failure != null) {
+						deferredResult.setErrorResult(failure instanceof CompletionException ? failure.getCause() : failure);
+					} else {
+						deferredResult.setResult(result);
+					}
+				});
+
+		return deferredResult;
+	}
+
+	@GetMapping("/autocomplete")
+	public List<ArtistDocument> autocompleteArtists(@RequestParam(name = "q", required = true) String queryString,
+	                                                @RequestParam(name = "userid", required = false) String userId,
+	                                                @RequestParam(name = "includeUserProfile", required = false) boolean includeUserProfile,
+	                                                @RequestParam(name = "from", required = false, defaultValue = "0") Integer from,
+	                                                @RequestParam(name = "size", required = false, defaultValue = "5") Integer size) {
+		return elasticSearchService.autocompleteArtists(ArtistSearchQuery.builder()
+				.queryString(queryString)
+				.userId(userId)
+				.includeRanking(true)
+				.includeUserProfile(includeUserProfile)
+				.from(from)
+				.size(size)
+				.build());
+	}
+
+	@GetMapping("/suggest")
+	public List<ArtistDocument> suggestArtists(@RequestParam(name = "q", required = true) String prefix,
+	                                           @RequestParam(name = "size", required = false, defaultValue = "5") Integer size) {
+		return elasticSearchService.suggestArtists(prefix, size);
 	}
 }
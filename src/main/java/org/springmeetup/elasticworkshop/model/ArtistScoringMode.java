@@ -0,0 +1,14 @@
+package org.springmeetup.elasticworkshop.model;
+
+public enum ArtistScoringMode {
+
+	// ranking and user profile boosts are applied by function_score on every matching document
+	FUNCTION_SCORE,
+
+	// non-personalized candidates are cached and user profile boosts are applied to them in the application
+	LOCAL_RERANK,
+
+	// documents are retrieved with full text scoring only, ranking and user profile boosts rescore only the top hits
+	RESCORE
+
+}
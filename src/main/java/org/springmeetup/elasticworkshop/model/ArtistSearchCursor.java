@@ -0,0 +1,27 @@
+package org.springmeetup.elasticworkshop.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * point in time and the sort values of the last hit of a page, the next page is searched after them
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ArtistSearchCursor {
+
+	@JsonProperty("pit")
+	private String pointInTimeId;
+
+	@JsonProperty("score")
+	private float score;
+
+	@JsonProperty("shard_doc")
+	private long shardDoc;
+
+}
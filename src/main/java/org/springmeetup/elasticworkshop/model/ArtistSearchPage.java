@@ -0,0 +1,21 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ArtistSearchPage {
+
+	private List<ArtistDocument> artists;
+
+	// opaque cursor of the next page, null if this is the last page
+	private String cursor;
+
+}
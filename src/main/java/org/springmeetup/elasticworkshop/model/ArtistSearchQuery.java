@@ -0,0 +1,35 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ArtistSearchQuery {
+
+	private String queryString;
+
+	private String userId;
+
+	private boolean includeRanking;
+
+	private boolean includeUserProfile;
+
+	private int from;
+
+	private int size;
+
+	// number of the user's top artists used for boosting, configured default is used if null
+	private Integer userProfileSize;
+
+	// configured default is used if null
+	private ArtistScoringMode scoringMode;
+
+	// configured default is used if null
+	private Boolean adaptiveQueryPlan;
+
+}
@@ -0,0 +1,37 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * outcome of a batch of listen events sent in a single request
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ListenEventBatchResult {
+
+	// events parsed from the request
+	private long received;
+
+	// events acknowledged by the kafka brokers
+	private long acknowledged;
+
+	// events that could not be sent to kafka
+	private long failed;
+
+	// lines that could not be parsed as a listen event
+	private long invalid;
+
+	// first errors, with the line number of the event
+	private List<String> errors;
+
+	// false if the request body could not be read to its end, events after the last received one are not sent
+	private boolean complete;
+
+}
@@ -0,0 +1,20 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SpilledListenEvent {
+
+	// listen-event index of the period the event was received in
+	private String indexName;
+
+	// document id, replaying the same event overwrites the document instead of duplicating it
+	private String id;
+
+	private ListenEvent listenEvent;
+
+}
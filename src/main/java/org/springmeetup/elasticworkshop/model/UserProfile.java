@@ -6,7 +6,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.util.Set;
+import java.util.*;
 
 @Data
 @NoArgsConstructor
@@ -20,4 +20,28 @@ public class UserProfile {
 	@JsonProperty("artist_ranking")
 	private Set<ArtistRanking> artistRankingSet;
 
+	/**
+	 * returns at most k artist rankings having the highest rankings, selected with a min-heap of size k.
+	 * returns all the artist rankings if k is not positive or the profile has no more than k artists
+	 *
+	 * @param k
+	 * @return
+	 */
+	public Set<ArtistRanking> topArtistRankings(int k) {
+		if (artistRankingSet == null || k <= 0 || artistRankingSet.size() <= k) {
+			return artistRankingSet;
+		}
+
+		PriorityQueue<ArtistRanking> heap = new PriorityQueue<>(k + 1,
+				Comparator.comparing(ArtistRanking::getRanking, Comparator.nullsFirst(Comparator.naturalOrder())));
+		for (ArtistRanking artistRanking : artistRankingSet) {
+			heap.offer(artistRanking);
+			if (heap.size() > k) {
+				heap.poll();
+			}
+		}
+
+		return new HashSet<>(heap);
+	}
+
 }
@@ -0,0 +1,31 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * lease of a work unit of a listen event window, seqNo and primaryTerm of the lease document are checked
+ * on every renewal so that a lease taken over by another node is noticed. progress is the position recorded by the previous owner
+ * of a lease taken over, null for a new lease
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class WindowLease {
+
+	private String id;
+
+	private String windowName;
+
+	private int workUnit;
+
+	private long seqNo;
+
+	private long primaryTerm;
+
+	private WindowProgress progress;
+
+}
@@ -0,0 +1,24 @@
+package org.springmeetup.elasticworkshop.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * position of a work unit of a listen event window: the composite aggregation being paged and the key of the last page
+ * whose counts have been applied. a work unit taken over by another node is resumed after that page
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class WindowProgress {
+
+	private String aggregationName;
+
+	private Map<String, Object> afterKey;
+
+}
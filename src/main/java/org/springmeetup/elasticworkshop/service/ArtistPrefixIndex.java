@@ -0,0 +1,401 @@
+package org.springmeetup.elasticworkshop.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.ArtistDocument;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * in-process prefix index (trie) over the normalized (ascii-folded, lowercased) artist names for autocomplete.
+ * artist name and each of its word suffixes are inserted, every node keeps the ids of its top-k artists by ranking,
+ * so that a lookup is a walk of the prefix characters with no scoring and no network round trip.
+ *
+ * nodes are copy-on-write, lookups are lock free while updates are serialized.
+ * rankings only grow in this application, so an artist that drops out of a node's top-k never has to come back by a decrease
+ *
+ * the ranking updates of this node are applied right away, the updates made by the other nodes and the artists added to
+ * the content index later are picked up by a periodic rebuild: a new trie is loaded with a sliced scroll and swapped in
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ArtistPrefixIndex implements Constants {
+
+	private final RestHighLevelClient client;
+	private final ObjectMapper objectMapper;
+
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+	private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^\\s\\p{L}\\p{N}]");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	@Value("${search.prefix-index.enabled:false}")
+	private boolean enabled;
+
+	@Value("${search.prefix-index.top-k:10}")
+	private int topK;
+
+	@Value("${search.prefix-index.load.slices:2}")
+	private int loadSlices;
+
+	@Value("${search.prefix-index.load.batch-size:1000}")
+	private int loadBatchSize;
+
+	@Value("${search.prefix-index.rebuild-interval-ms:600000}")
+	private long rebuildIntervalMs;
+
+	private volatile Trie trie = new Trie();
+
+	/**
+	 * trie being loaded by a rebuild, the ranking updates are applied to it too so that none is lost by the swap
+	 */
+	private Trie rebuildingTrie;
+
+	private volatile boolean loaded;
+
+	private ScheduledExecutorService scheduledExecutorService;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return true once the initial load has completed, lookups are not complete before that
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * loads the index and schedules the periodic rebuild
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void load() {
+		if (!enabled) {
+			return;
+		}
+
+		rebuild();
+
+		if (rebuildIntervalMs > 0) {
+			scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "artist-prefix-index-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduledExecutorService.scheduleWithFixedDelay(this::rebuild, rebuildIntervalMs, rebuildIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (scheduledExecutorService != null) {
+			scheduledExecutorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * loads all artists of the content index into a new trie with a sliced scroll, slices are read in parallel,
+	 * and swaps it in once complete, lookups use the current trie until then.
+	 * a failure keeps the current trie, before the first successful load autocomplete falls back to the search in elasticsearch
+	 */
+	void rebuild() {
+		long startTime = System.currentTimeMillis();
+		Trie loadingTrie = new Trie();
+		synchronized (this) {
+			rebuildingTrie = loadingTrie;
+		}
+
+		ExecutorService executorService = Executors.newFixedThreadPool(loadSlices);
+		try {
+			CompletableFuture<?>[] sliceFutures = new CompletableFuture<?>[loadSlices];
+			for (int sliceId = 0; sliceId < loadSlices; sliceId++) {
+				int slice = sliceId;
+				sliceFutures[sliceId] = CompletableFuture.runAsync(() -> loadSlice(loadingTrie, slice), executorService);
+			}
+			CompletableFuture.allOf(sliceFutures).join();
+
+			synchronized (this) {
+				trie = loadingTrie;
+				rebuildingTrie = null;
+			}
+			loaded = true;
+			log.info("artist prefix index loaded {} artists in {} ms", loadingTrie.artists.size(), System.currentTimeMillis() - startTime);
+		} catch (Exception e) {
+			synchronized (this) {
+				rebuildingTrie = null;
+			}
+			log.warn("artist prefix index could not be loaded, {}", loaded ? "the previous index is kept" : "autocomplete falls back to elasticsearch", e);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	private void loadSlice(Trie loadingTrie, int sliceId) {
+		TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+				.query(QueryBuilders.matchAllQuery())
+				.fetchSource(ARTIST_DOCUMENT_SOURCE_FIELDS, null)
+				.size(loadBatchSize)
+				.sort("_doc");
+		if (loadSlices > 1) {
+			searchSourceBuilder.slice(new SliceBuilder(sliceId, loadSlices));
+		}
+
+		SearchRequest searchRequest = new SearchRequest(CONTENT_INDEX_NAME)
+				.source(searchSourceBuilder)
+				.scroll(keepAlive);
+
+		String scrollId = null;
+		try {
+			SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+			scrollId = searchResponse.getScrollId();
+
+			while (searchResponse.getHits().getHits().length > 0) {
+				for (SearchHit searchHit : searchResponse.getHits().getHits()) {
+					ArtistDocument artistDocument = objectMapper.readValue(searchHit.getSourceRef().streamInput(), ArtistDocument.class);
+					synchronized (this) {
+						loadingTrie.put(artistDocument);
+					}
+				}
+
+				searchResponse = client.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), RequestOptions.DEFAULT);
+				scrollId = searchResponse.getScrollId();
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		} finally {
+			clearScroll(scrollId);
+		}
+	}
+
+	private void clearScroll(String scrollId) {
+		if (scrollId == null) {
+			return;
+		}
+
+		ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+		clearScrollRequest.addScrollId(scrollId);
+		try {
+			client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+		} catch (IOException ioe) {
+			log.warn("scroll could not be cleared, it will expire after keep alive", ioe);
+		}
+	}
+
+	/**
+	 * adds the artist or raises its ranking, the artist is offered to the top-k of each node on the paths of its name.
+	 * the higher of the known and the given ranking is kept: a load runs concurrently with the ranking updates,
+	 * a scroll page read before an update must not bring the ranking back down
+	 *
+	 * @param artistDocument
+	 */
+	public synchronized void put(ArtistDocument artistDocument) {
+		trie.put(artistDocument);
+		if (rebuildingTrie != null) {
+			rebuildingTrie.put(artistDocument);
+		}
+	}
+
+	/**
+	 * top artists by ranking whose name or one of its word suffixes starts with the prefix
+	 *
+	 * @param prefix
+	 * @param size
+	 * @return empty list if nothing matches the prefix
+	 */
+	public List<ArtistDocument> lookup(String prefix, int size) {
+		String normalizedPrefix = normalize(prefix);
+		if (normalizedPrefix.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		return trie.lookup(normalizedPrefix, size);
+	}
+
+	public int getTopK() {
+		return topK;
+	}
+
+	private static List<String> toInputs(String artistName) {
+		String[] tokens = WHITESPACE.split(normalize(artistName));
+		List<String> inputs = new ArrayList<>(tokens.length);
+		for (int i = 0; i < tokens.length; i++) {
+			if (!tokens[i].isEmpty()) {
+				inputs.add(String.join(" ", Arrays.asList(tokens).subList(i, tokens.length)));
+			}
+		}
+
+		return inputs;
+	}
+
+	/**
+	 * decomposes and strips the diacritics, removes the characters other than letters and digits (as the q_prefix analyzer does),
+	 * lowercases and collapses the whitespace
+	 *
+	 * @param text
+	 * @return
+	 */
+	static String normalize(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		String folded = DIACRITICS.matcher(decomposed).replaceAll("");
+		String alphanumeric = NON_ALPHANUMERIC.matcher(folded).replaceAll("");
+		return WHITESPACE.matcher(alphanumeric.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+	}
+
+	/**
+	 * the nodes and the artists of one load, a swap replaces both at once
+	 */
+	private class Trie {
+
+		private final Node root = new Node('\0');
+		private final Map<String, ArtistDocument> artists = new ConcurrentHashMap<>();
+
+		private void put(ArtistDocument artistDocument) {
+			if (artistDocument.getArtistId() == null || artistDocument.getArtistName() == null) {
+				return;
+			}
+
+			long ranking = artistDocument.getRanking() != null ? artistDocument.getRanking() : 0L;
+			artists.put(artistDocument.getArtistId(), ArtistDocument.builder()
+					.artistId(artistDocument.getArtistId())
+					.artistName(artistDocument.getArtistName())
+					.ranking(Math.max(ranking, rankingOf(artistDocument.getArtistId())))
+					.build());
+
+			for (String input : toInputs(artistDocument.getArtistName())) {
+				Node node = root;
+				for (int i = 0; i < input.length(); i++) {
+					node = node.getOrAddChild(input.charAt(i));
+					node.offer(artistDocument.getArtistId());
+				}
+			}
+		}
+
+		private List<ArtistDocument> lookup(String normalizedPrefix, int size) {
+			Node node = root;
+			for (int i = 0; i < normalizedPrefix.length() && node != null; i++) {
+				node = node.getChild(normalizedPrefix.charAt(i));
+			}
+			if (node == null) {
+				return Collections.emptyList();
+			}
+
+			String[] topArtistIds = node.topArtistIds;
+			List<ArtistDocument> result = new ArrayList<>(Math.min(size, topArtistIds.length));
+			for (int i = 0; i < topArtistIds.length && result.size() < size; i++) {
+				result.add(artists.get(topArtistIds[i]));
+			}
+
+			return result;
+		}
+
+		private long rankingOf(String artistId) {
+			ArtistDocument artistDocument = artists.get(artistId);
+			return artistDocument != null && artistDocument.getRanking() != null ? artistDocument.getRanking() : 0L;
+		}
+
+		/**
+		 * children are kept sorted by key in an array, both the children and the top-k arrays are replaced on change
+		 */
+		private class Node {
+
+			private final char key;
+
+			private volatile Node[] children = new Node[0];
+
+			private volatile String[] topArtistIds = new String[0];
+
+			private Node(char key) {
+				this.key = key;
+			}
+
+			private Node getChild(char c) {
+				Node[] current = children;
+				int index = indexOf(current, c);
+				return index >= 0 ? current[index] : null;
+			}
+
+			private Node getOrAddChild(char c) {
+				Node[] current = children;
+				int index = indexOf(current, c);
+				if (index >= 0) {
+					return current[index];
+				}
+
+				int insertionPoint = -index - 1;
+				Node child = new Node(c);
+				Node[] updated = new Node[current.length + 1];
+				System.arraycopy(current, 0, updated, 0, insertionPoint);
+				updated[insertionPoint] = child;
+				System.arraycopy(current, insertionPoint, updated, insertionPoint + 1, current.length - insertionPoint);
+				children = updated;
+				return child;
+			}
+
+			private void offer(String artistId) {
+				String[] current = topArtistIds;
+				boolean contained = Arrays.asList(current).contains(artistId);
+				if (!contained && current.length >= topK && rankingOf(current[current.length - 1]) >= rankingOf(artistId)) {
+					return;
+				}
+
+				List<String> updated = new ArrayList<>(current.length + 1);
+				updated.addAll(Arrays.asList(current));
+				if (!contained) {
+					updated.add(artistId);
+				}
+				updated.sort(Comparator.comparingLong(Trie.this::rankingOf).reversed());
+				if (updated.size() > topK) {
+					updated.subList(topK, updated.size()).clear();
+				}
+
+				topArtistIds = updated.toArray(new String[0]);
+			}
+
+			private int indexOf(Node[] nodes, char c) {
+				int low = 0;
+				int high = nodes.length - 1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					if (nodes[mid].key < c) {
+						low = mid + 1;
+					} else if (nodes[mid].key > c) {
+						high = mid - 1;
+					} else {
+						return mid;
+					}
+				}
+
+				return -(low + 1);
+			}
+		}
+	}
+}
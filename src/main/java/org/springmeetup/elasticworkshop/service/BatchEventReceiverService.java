@@ -0,0 +1,61 @@
+package org.springmeetup.elasticworkshop.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Service
+@ConditionalOnProperty(name = "listen-event.consumer.batch.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class BatchEventReceiverService {
+
+	private final EventProcessingService eventProcessingService;
+
+	/**
+	 * receives all the records of a single poll, indexes them with bulk requests and commits the offsets
+	 * only after all of them are indexed. a poll holds records of the partitions assigned to this listener thread only,
+	 * records of each partition in order. if indexing fails, nothing is acknowledged and the whole poll is re-delivered
+	 *
+	 * @param records
+	 * @param acknowledgment
+	 */
+	@KafkaListener(topics = Constants.LISTEN_EVENT_TOPIC_NAME)
+	public void listen(List<ConsumerRecord<String, ListenEvent>> records, Acknowledgment acknowledgment) {
+		log.debug("Received {} messages from topic: {}", records.size(), Constants.LISTEN_EVENT_TOPIC_NAME);
+
+		Map<Integer, Map<String, ListenEvent>> listenEventsByPartition = new LinkedHashMap<>();
+		for (ConsumerRecord<String, ListenEvent> record : records) {
+			// null if the message could not be deserialized, it has already been logged
+			if (record.value() == null)
+				continue;
+
+			listenEventsByPartition.computeIfAbsent(record.partition(), partition -> new LinkedHashMap<>())
+					.put(toDocumentId(record), record.value());
+		}
+
+		eventProcessingService.saveListenEvents(listenEventsByPartition);
+		acknowledgment.acknowledge();
+	}
+
+	/**
+	 * topic, partition and offset identify a record uniquely, using them as the document id
+	 * makes re-delivered records overwrite the documents indexed by a previous, partially failed attempt
+	 *
+	 * @param record
+	 * @return
+	 */
+	private String toDocumentId(ConsumerRecord<String, ListenEvent> record) {
+		return record.topic() + "-" + record.partition() + "-" + record.offset();
+	}
+
+}
@@ -0,0 +1,239 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * executes a bulk request as chunks bounded by number of actions and size in bytes, with a bounded number of chunks in flight.
+ * items rejected with 429 (write thread pool queue is full) are retried with exponential backoff, other failures are not retried.
+ * chunk size is adapted to the cluster: halved when a chunk is rejected or slower than the target latency,
+ * otherwise increased by the minimum chunk size (additive increase / multiplicative decrease).
+ *
+ * metrics
+ *  elasticsearch.bulk.items : items tagged with result success, retried (per retry), dropped (still rejected with 429 after all retries)
+ *  and failed (any other failure, not retried)
+ *  elasticsearch.bulk.chunk.actions : current number of actions per chunk
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BulkRequestExecutor {
+
+	private final RestHighLevelClient client;
+	private final MeterRegistry meterRegistry;
+
+	@Value("${elasticsearch.bulk.initial-chunk-actions:500}")
+	private int initialChunkActions;
+
+	@Value("${elasticsearch.bulk.min-chunk-actions:50}")
+	private int minChunkActions;
+
+	@Value("${elasticsearch.bulk.max-chunk-actions:5000}")
+	private int maxChunkActions;
+
+	@Value("${elasticsearch.bulk.max-chunk-size-in-bytes:5242880}")
+	private long maxChunkSizeInBytes;
+
+	@Value("${elasticsearch.bulk.max-concurrent-requests:2}")
+	private int maxConcurrentRequests;
+
+	@Value("${elasticsearch.bulk.target-latency-ms:1000}")
+	private long targetLatencyMs;
+
+	@Value("${elasticsearch.bulk.max-retries:3}")
+	private int maxRetries;
+
+	@Value("${elasticsearch.bulk.initial-backoff-ms:100}")
+	private long initialBackoffMs;
+
+	private final AtomicInteger chunkActions = new AtomicInteger();
+
+	@PostConstruct
+	public void init() {
+		chunkActions.set(initialChunkActions);
+		meterRegistry.gauge("elasticsearch.bulk.chunk.actions", chunkActions);
+	}
+
+	/**
+	 * blocks until all the items are executed, retries included
+	 *
+	 * @param bulkRequest
+	 * @return item responses in the order of the requests of the given bulk request
+	 */
+	public BulkResponse execute(BulkRequest bulkRequest) {
+		long startTime = System.nanoTime();
+
+		List<DocWriteRequest<?>> requests = bulkRequest.requests();
+		BulkItemResponse[] responses = new BulkItemResponse[requests.size()];
+
+		List<Integer> pendingPositions = new ArrayList<>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			pendingPositions.add(i);
+		}
+
+		long backoffMs = initialBackoffMs;
+		for (int retry = 0; !pendingPositions.isEmpty(); retry++) {
+			List<Integer> rejectedPositions = executeChunks(bulkRequest, pendingPositions, responses);
+			if (rejectedPositions.isEmpty() || retry >= maxRetries) {
+				break;
+			}
+
+			meterRegistry.counter("elasticsearch.bulk.items", "result", "retried").increment(rejectedPositions.size());
+			log.warn("{} bulk items rejected, retrying in {} ms", rejectedPositions.size(), backoffMs);
+			sleep(backoffMs);
+			backoffMs *= 2;
+			pendingPositions = rejectedPositions;
+		}
+
+		int droppedItems = 0;
+		int failedItems = 0;
+		for (BulkItemResponse response : responses) {
+			if (!response.isFailed()) {
+				continue;
+			}
+
+			if (response.status() == RestStatus.TOO_MANY_REQUESTS) {
+				droppedItems++;
+			} else {
+				failedItems++;
+			}
+		}
+		meterRegistry.counter("elasticsearch.bulk.items", "result", "success").increment(responses.length - droppedItems - failedItems);
+		meterRegistry.counter("elasticsearch.bulk.items", "result", "dropped").increment(droppedItems);
+		meterRegistry.counter("elasticsearch.bulk.items", "result", "failed").increment(failedItems);
+
+		return new BulkResponse(responses, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+	}
+
+	/**
+	 * @return positions of the items rejected with 429
+	 */
+	private List<Integer> executeChunks(BulkRequest bulkRequest, List<Integer> positions, BulkItemResponse[] responses) {
+		List<Integer> rejectedPositions = Collections.synchronizedList(new ArrayList<>());
+		List<CompletableFuture<Void>> chunkFutures = new ArrayList<>();
+		Semaphore inFlightChunks = new Semaphore(maxConcurrentRequests);
+
+		int i = 0;
+		while (i < positions.size()) {
+			int chunkLimit = chunkActions.get();
+			BulkRequest chunk = new BulkRequest();
+			chunk.setRefreshPolicy(bulkRequest.getRefreshPolicy());
+			chunk.timeout(bulkRequest.timeout());
+
+			List<Integer> chunkPositions = new ArrayList<>();
+			while (i < positions.size() && chunk.numberOfActions() < chunkLimit && chunk.estimatedSizeInBytes() < maxChunkSizeInBytes) {
+				chunk.add(bulkRequest.requests().get(positions.get(i)));
+				chunkPositions.add(positions.get(i));
+				i++;
+			}
+
+			try {
+				inFlightChunks.acquire();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ie);
+			}
+			chunkFutures.add(executeChunk(chunk, chunkPositions, responses, rejectedPositions, inFlightChunks));
+		}
+
+		try {
+			CompletableFuture.allOf(chunkFutures.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw new RuntimeException(ce.getCause());
+		}
+
+		return rejectedPositions;
+	}
+
+	private CompletableFuture<Void> executeChunk(BulkRequest chunk, List<Integer> chunkPositions, BulkItemResponse[] responses,
+	                                             List<Integer> rejectedPositions, Semaphore inFlightChunks) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		long sentAt = System.nanoTime();
+
+		client.bulkAsync(chunk, RequestOptions.DEFAULT, ActionListener.wrap(
+				bulkResponse -> {
+					inFlightChunks.release();
+
+					boolean rejected = false;
+					BulkItemResponse[] items = bulkResponse.getItems();
+					for (int j = 0; j < items.length; j++) {
+						int position = chunkPositions.get(j);
+						responses[position] = items[j].isFailed()
+								? new BulkItemResponse(position, items[j].getOpType(), items[j].getFailure())
+								: new BulkItemResponse(position, items[j].getOpType(), items[j].getResponse());
+
+						if (items[j].isFailed() && items[j].status() == RestStatus.TOO_MANY_REQUESTS) {
+							rejectedPositions.add(position);
+							rejected = true;
+						}
+					}
+
+					adjustChunkActions(rejected, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+					future.complete(null);
+				},
+				exception -> {
+					inFlightChunks.release();
+
+					// the whole chunk may be rejected by the coordinating node
+					if (exception instanceof ElasticsearchStatusException
+							&& ((ElasticsearchStatusException) exception).status() == RestStatus.TOO_MANY_REQUESTS) {
+						for (int j = 0; j < chunk.requests().size(); j++) {
+							DocWriteRequest<?> request = chunk.requests().get(j);
+							int position = chunkPositions.get(j);
+							responses[position] = new BulkItemResponse(position, request.opType(),
+									new BulkItemResponse.Failure(request.index(), "_doc", request.id(), exception, RestStatus.TOO_MANY_REQUESTS));
+							rejectedPositions.add(position);
+						}
+
+						adjustChunkActions(true, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+						future.complete(null);
+					} else {
+						future.completeExceptionally(exception);
+					}
+				}));
+
+		return future;
+	}
+
+	private void adjustChunkActions(boolean rejected, long latencyMs) {
+		if (rejected || latencyMs > targetLatencyMs) {
+			chunkActions.updateAndGet(actions -> Math.max(minChunkActions, actions / 2));
+		} else {
+			chunkActions.updateAndGet(actions -> Math.min(maxChunkActions, actions + minChunkActions));
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+	}
+}
@@ -8,6 +8,18 @@ public interface Constants {
 	String LISTEN_EVENT_INDEX_NAME_PREFIX = "listen-event-";
 	String ARTIST_RANKING_INDEX_NAME_PREFIX = "artist-ranking-";
 
+	String LISTEN_EVENT_DATA_STREAM_NAME = "listen-events";
+	String LISTEN_EVENT_LIFECYCLE_POLICY_NAME = "listen-events-policy";
+
+	String RANKING_WINDOW_LEASE_INDEX_NAME = "ranking-window-lease";
+	String RANKING_WINDOW_CHECKPOINT_INDEX_NAME = "ranking-window-checkpoint";
+
+	// source fields of an ArtistDocument, fetched for search results, the prefix index and its ranking updates
+	String[] ARTIST_DOCUMENT_SOURCE_FIELDS = {"artist_id", "artist_name", "ranking"};
+
+	// listen events are assigned to one of the user buckets by user_id, work units of a window are ranges of user buckets
+	int LISTEN_EVENT_USER_BUCKET_COUNT = 1024;
+
 	String LISTEN_EVENT_TOPIC_NAME = "listen-events";
 
 }
@@ -2,9 +2,13 @@ package org.springmeetup.elasticworkshop.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -14,14 +18,24 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.lucene.search.function.CombineFunction;
 import org.elasticsearch.common.lucene.search.function.FunctionScoreQuery;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.MultiMatchQueryBuilder;
 import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermsQueryBuilder;
 import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
 import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
@@ -29,15 +43,37 @@ import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.rescore.QueryRescoreMode;
+import org.elasticsearch.search.rescore.QueryRescorerBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.search.suggest.SuggestBuilder;
+import org.elasticsearch.search.suggest.SuggestBuilders;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestion;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestionBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 import org.springmeetup.elasticworkshop.model.ArtistDocument;
 import org.springmeetup.elasticworkshop.model.ArtistRanking;
+import org.springmeetup.elasticworkshop.model.ArtistScoringMode;
+import org.springmeetup.elasticworkshop.model.ArtistSearchCursor;
+import org.springmeetup.elasticworkshop.model.ArtistSearchPage;
+import org.springmeetup.elasticworkshop.model.ArtistSearchQuery;
 import org.springmeetup.elasticworkshop.model.UserProfile;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
@@ -47,6 +83,51 @@ public class ElasticSearchService implements Constants {
 
 	private final RestHighLevelClient client;
 	private final ObjectMapper objectMapper;
+	private final Cache<String, UserProfile> userProfileCache;
+	private final AsyncCache<String, List<ArtistDocument>> artistCandidateCache;
+	private final MeterRegistry meterRegistry;
+	private final SearchRequestCoalescer searchRequestCoalescer;
+	private final ArtistPrefixIndex artistPrefixIndex;
+	private final BulkRequestExecutor bulkRequestExecutor;
+
+	private static final String ARTIST_SUGGEST_FIELD = "artist_suggest";
+	private static final String ARTIST_SUGGESTION_NAME = "artist_suggestion";
+
+	@Value("${user-profile.cache.enabled:true}")
+	private boolean userProfileCacheEnabled;
+
+	@Value("${search.user-profile.max-artists:20}")
+	private int searchUserProfileMaxArtists;
+
+	@Value("${search.scoring-mode:FUNCTION_SCORE}")
+	private ArtistScoringMode defaultScoringMode;
+
+	@Value("${search.candidate-cache.depth:100}")
+	private int candidateDepth;
+
+	@Value("${search.rescore.window-size:100}")
+	private int rescoreWindowSize;
+
+	@Value("${search.lean-response.enabled:true}")
+	private boolean leanResponseEnabled;
+
+	@Value("${search.log.sample-rate:0}")
+	private double searchLogSampleRate;
+
+	@Value("${search.allocation-metrics.enabled:false}")
+	private boolean allocationMetricsEnabled;
+
+	@Value("${search.query-plan.adaptive:false}")
+	private boolean defaultAdaptiveQueryPlan;
+
+	@Value("${search.fuzzy.min-query-length:3}")
+	private int fuzzyMinQueryLength;
+
+	@Value("${search.fuzzy.two-edits-min-query-length:8}")
+	private int fuzzyTwoEditsMinQueryLength;
+
+	@Value("${search.cursor.keep-alive-ms:60000}")
+	private long cursorKeepAliveMs;
 
 	/**
 	 * performs following operations in elasticsearch
@@ -54,16 +135,453 @@ public class ElasticSearchService implements Constants {
 	 *  ranking based boosting
 	 *  user profile based boosting
 	 *
+	 * only the top artists of the user profile are used for boosting, to keep the query size independent of the profile size
+	 * in LOCAL_RERANK scoring mode user profile boosting is applied in the application to cached non-personalized candidates
+	 * in RESCORE scoring mode ranking and user profile boosting are applied only to the top hits in the rescore window
+	 * if allocation metrics are enabled, bytes allocated by the calling thread are recorded as search.allocated.bytes, tagged with lean
+	 *
+	 * @param artistSearchQuery
+	 * @return
+	 */
+	public List<ArtistDocument> searchArtists(ArtistSearchQuery artistSearchQuery) {
+		long allocatedBytesBefore = allocationMetricsEnabled ? getCurrentThreadAllocatedBytes() : 0;
+
+		List<ArtistDocument> result = join(searchArtists(artistSearchQuery, true));
+
+		if (allocationMetricsEnabled) {
+			meterRegistry.summary("search.allocated.bytes", "lean", String.valueOf(leanResponseEnabled))
+					.record(getCurrentThreadAllocatedBytes() - allocatedBytesBefore);
+		}
+
+		return result;
+	}
+
+	/**
+	 * non-blocking variant of searchArtists, the user profile GET and the searches are sent with the async client
+	 * and the returned future is completed on the client's io threads, no caller thread waits for elasticsearch
+	 *
+	 * @param artistSearchQuery
+	 * @return
+	 */
+	public CompletableFuture<List<ArtistDocument>> searchArtistsAsync(ArtistSearchQuery artistSearchQuery) {
+		return searchArtists(artistSearchQuery, false);
+	}
+
+	/**
+	 * cursor based pagination, pages are searched after the last hit of the previous page in a point in time,
+	 * so each page costs the same regardless of its depth and is consistent with the previous pages.
+	 * first page is requested without a cursor, a point in time of the content index is opened for it.
+	 * the full query (ranking and user profile boosting, fuzziness 1) is used in all scoring modes,
+	 * since sort on score with a tiebreaker is required and rescore cannot be combined with sort.
+	 * the point in time is closed when the last page is reached, or when the search of the first page fails, otherwise it expires
+	 * after the keep alive
+	 *
+	 * @param artistSearchQuery from is ignored, size is the page size
+	 * @param cursor cursor returned with the previous page, null for the first page
+	 * @return
+	 * @throws ResponseStatusException with 400 if the cursor is not one returned by this method,
+	 * with 410 if the point in time of the cursor has expired, paging is restarted from the first page
+	 */
+	public ArtistSearchPage searchArtistsPage(ArtistSearchQuery artistSearchQuery, String cursor) {
+		ArtistSearchCursor artistSearchCursor = cursor != null ? decodeCursor(cursor) : null;
+
+		Set<ArtistRanking> userArtistRankingSet = artistSearchQuery.isIncludeUserProfile()
+				? join(getUserProfileArtistRankings(artistSearchQuery, true))
+				: Collections.emptySet();
+
+		String pointInTimeId = artistSearchCursor != null ? artistSearchCursor.getPointInTimeId() : openPointInTime();
+
+		SearchRequest searchRequest = createFunctionScoreSearchRequest(createFullTextQuery(artistSearchQuery.getQueryString(), "1"),
+				artistSearchQuery.isIncludeRanking(), userArtistRankingSet, 0, artistSearchQuery.getSize());
+		searchRequest.indices(Strings.EMPTY_ARRAY);
+		searchRequest.source()
+				.pointInTimeBuilder(new PointInTimeBuilder(pointInTimeId).setKeepAlive(TimeValue.timeValueMillis(cursorKeepAliveMs)))
+				.sort(SortBuilders.pitTiebreaker());
+		if (artistSearchCursor != null) {
+			searchRequest.source().searchAfter(new Object[]{artistSearchCursor.getScore(), artistSearchCursor.getShardDoc()});
+		}
+		if (leanResponseEnabled) {
+			searchRequest.source().fetchSource(ARTIST_DOCUMENT_SOURCE_FIELDS, null);
+		}
+
+		SearchResponse searchResponse;
+		try {
+			searchResponse = join(executeSearch(searchRequest, true));
+		} catch (RuntimeException e) {
+			// a point in time opened for this page is not passed on to anyone, the point in time of a cursor may be retried with it
+			if (artistSearchCursor == null) {
+				closePointInTime(pointInTimeId);
+			} else if (e instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) e).status() == RestStatus.NOT_FOUND) {
+				// search_context_missing, the point in time has expired or was closed
+				throw new ResponseStatusException(HttpStatus.GONE, "cursor expired", e);
+			}
+			throw e;
+		}
+		List<ArtistDocument> artists = toArtistDocuments(searchResponse);
+
+		SearchHit[] searchHits = searchResponse.getHits().getHits();
+		if (searchHits.length < artistSearchQuery.getSize()) {
+			closePointInTime(searchResponse.pointInTimeId() != null ? searchResponse.pointInTimeId() : pointInTimeId);
+			return new ArtistSearchPage(artists, null);
+		}
+
+		// point in time id may change between searches, the latest one is passed on
+		Object[] lastSortValues = searchHits[searchHits.length - 1].getSortValues();
+		ArtistSearchCursor nextCursor = ArtistSearchCursor.builder()
+				.pointInTimeId(searchResponse.pointInTimeId() != null ? searchResponse.pointInTimeId() : pointInTimeId)
+				.score(((Number) lastSortValues[0]).floatValue())
+				.shardDoc(((Number) lastSortValues[1]).longValue())
+				.build();
+
+		return new ArtistSearchPage(artists, encodeCursor(nextCursor));
+	}
+
+	/**
+	 * high level client of this version has no point in time api, low level client is used instead
+	 *
+	 * @return
+	 */
+	private String openPointInTime() {
+		Request request = new Request("POST", "/" + CONTENT_INDEX_NAME + "/_pit");
+		request.addParameter("keep_alive", TimeValue.timeValueMillis(cursorKeepAliveMs).getStringRep());
+
+		try {
+			Response response = client.getLowLevelClient().performRequest(request);
+			return objectMapper.readTree(response.getEntity().getContent()).get("id").asText();
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	private void closePointInTime(String pointInTimeId) {
+		Request request = new Request("DELETE", "/_pit");
+		request.setJsonEntity(toJsonString(Collections.singletonMap("id", pointInTimeId)));
+
+		client.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+			@Override
+			public void onSuccess(Response response) {
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				log.warn("point in time could not be closed, it will expire after keep alive", exception);
+			}
+		});
+	}
+
+	private String encodeCursor(ArtistSearchCursor artistSearchCursor) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(toJsonString(artistSearchCursor).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * a cursor that cannot be decoded is a client error, it is answered with 400
+	 */
+	private ArtistSearchCursor decodeCursor(String cursor) {
+		ArtistSearchCursor artistSearchCursor;
+		try {
+			artistSearchCursor = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), ArtistSearchCursor.class);
+		} catch (IllegalArgumentException | IOException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid cursor", e);
+		}
+
+		if (artistSearchCursor == null || artistSearchCursor.getPointInTimeId() == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid cursor");
+		}
+		return artistSearchCursor;
+	}
+
+	/**
+	 * autocomplete from the in-process prefix index, without a round trip to elasticsearch.
+	 * personalized queries, pages beyond the top-k of the index and prefixes with no exact match (e.g. typos, which need fuzziness)
+	 * fall back to searchArtists
+	 *
+	 * @param artistSearchQuery
+	 * @return
+	 */
+	public List<ArtistDocument> autocompleteArtists(ArtistSearchQuery artistSearchQuery) {
+		if (artistPrefixIndex.isLoaded()
+				&& !artistSearchQuery.isIncludeUserProfile()
+				&& artistSearchQuery.getFrom() + artistSearchQuery.getSize() <= artistPrefixIndex.getTopK()) {
+			List<ArtistDocument> result = artistPrefixIndex.lookup(artistSearchQuery.getQueryString(),
+					artistSearchQuery.getFrom() + artistSearchQuery.getSize());
+			if (!result.isEmpty()) {
+				meterRegistry.counter("search.autocomplete", "source", "prefix_index").increment();
+				return result.subList(Math.min(artistSearchQuery.getFrom(), result.size()), result.size());
+			}
+		}
+
+		meterRegistry.counter("search.autocomplete", "source", "elasticsearch").increment();
+		return searchArtists(artistSearchQuery);
+	}
+
+	/**
+	 * prefix lookup on the artist_suggest completion field for search as you type, suggestions are ordered by their weight
+	 * which is the artist ranking. no scoring takes place, the full scored search is meant for the final query only
+	 *
+	 * @param prefix
+	 * @param size
+	 * @return
+	 */
+	public List<ArtistDocument> suggestArtists(String prefix, int size) {
+		SearchRequest searchRequest = new SearchRequest(CONTENT_INDEX_NAME);
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+		searchRequest.source(searchSourceBuilder);
+
+		CompletionSuggestionBuilder completionSuggestionBuilder = SuggestBuilders.completionSuggestion(ARTIST_SUGGEST_FIELD)
+				.prefix(prefix)
+				.size(size)
+				.skipDuplicates(true);
+
+		searchSourceBuilder.suggest(new SuggestBuilder().addSuggestion(ARTIST_SUGGESTION_NAME, completionSuggestionBuilder));
+		searchSourceBuilder.fetchSource(ARTIST_DOCUMENT_SOURCE_FIELDS, null);
+		searchSourceBuilder.size(0);
+
+		SearchResponse searchResponse = join(executeSearch(searchRequest, true));
+		if (searchResponse.getSuggest() == null) {
+			return Collections.emptyList();
+		}
+
+		CompletionSuggestion completionSuggestion = searchResponse.getSuggest().getSuggestion(ARTIST_SUGGESTION_NAME);
+		List<ArtistDocument> result = new ArrayList<>(completionSuggestion.getOptions().size());
+		for (CompletionSuggestion.Entry.Option option : completionSuggestion.getOptions()) {
+			ArtistDocument artistDocument = toDocumentObject(option.getHit().getSourceRef(), ArtistDocument.class);
+			artistDocument.set_score(option.getScore());
+			result.add(artistDocument);
+		}
+
+		return result;
+	}
+
+	/**
+	 * in blocking mode elasticsearch requests are sent on the calling thread and the returned future is already completed
+	 *
+	 * @param artistSearchQuery
+	 * @param blocking
+	 * @return
+	 */
+	private CompletableFuture<List<ArtistDocument>> searchArtists(ArtistSearchQuery artistSearchQuery, boolean blocking) {
+		ArtistScoringMode scoringMode = artistSearchQuery.getScoringMode() != null ? artistSearchQuery.getScoringMode() : defaultScoringMode;
+		boolean adaptiveQueryPlan = artistSearchQuery.getAdaptiveQueryPlan() != null ? artistSearchQuery.getAdaptiveQueryPlan() : defaultAdaptiveQueryPlan;
+
+		CompletableFuture<Set<ArtistRanking>> userArtistRankingSetFuture = artistSearchQuery.isIncludeUserProfile()
+				? getUserProfileArtistRankings(artistSearchQuery, blocking)
+				: CompletableFuture.completedFuture(Collections.emptySet());
+
+		return userArtistRankingSetFuture.thenCompose(userArtistRankingSet -> {
+			// pages deeper than the cached candidates can only be served by elasticsearch
+			if (scoringMode == ArtistScoringMode.LOCAL_RERANK
+					&& artistSearchQuery.getFrom() + artistSearchQuery.getSize() <= candidateDepth) {
+				return searchArtistsWithLocalRerank(artistSearchQuery, adaptiveQueryPlan, userArtistRankingSet, blocking);
+			}
+
+			if (scoringMode == ArtistScoringMode.RESCORE) {
+				return searchArtistsWithQueryPlan(artistSearchQuery.getQueryString(), adaptiveQueryPlan, artistSearchQuery.getFrom(), artistSearchQuery.getSize(),
+						fullTextQuery -> createRescoreSearchRequest(fullTextQuery, artistSearchQuery.isIncludeRanking(),
+								userArtistRankingSet, artistSearchQuery.getFrom(), artistSearchQuery.getSize()), blocking);
+			}
+
+			return searchArtistsWithQueryPlan(artistSearchQuery.getQueryString(), adaptiveQueryPlan, artistSearchQuery.getFrom(), artistSearchQuery.getSize(),
+					fullTextQuery -> createFunctionScoreSearchRequest(fullTextQuery, artistSearchQuery.isIncludeRanking(),
+							userArtistRankingSet, artistSearchQuery.getFrom(), artistSearchQuery.getSize()), blocking);
+		});
+	}
+
+	/**
+	 * full query plan runs exact/prefix and fuzzy clauses together.
+	 * adaptive query plan runs the exact/prefix clause first, and adds the fuzzy clause only if the exact/prefix clause matches less than
+	 * from + size documents in total. the plan depends on the total exact hits, not on the hits of the page, so every page of a query
+	 * that lies within the exact hits is served by the same plan and pages do not reorder.
+	 * fuzziness is chosen by the query length, queries too short for fuzzy matching are never expanded.
+	 * the path of each search is recorded as search.query.plan timer, tagged with path
+	 *
 	 * @param queryString
+	 * @param adaptiveQueryPlan
 	 * @param from
 	 * @param size
+	 * @param searchRequestFactory creates the search request wrapping the given full text query
 	 * @return
 	 */
-	public List<ArtistDocument> searchArtists(String queryString, String userId, boolean includeRanking, boolean includeUserProfile, int from, int size) {
+	private CompletableFuture<List<ArtistDocument>> searchArtistsWithQueryPlan(String queryString, boolean adaptiveQueryPlan, int from, int size,
+	                                                                           Function<QueryBuilder, SearchRequest> searchRequestFactory,
+	                                                                           boolean blocking) {
+		long startTime = System.nanoTime();
+
+		if (!adaptiveQueryPlan) {
+			return executeArtistSearch(searchRequestFactory.apply(createFullTextQuery(queryString, "1")), blocking)
+					.whenComplete((result, failure) -> recordQueryPlan("full", startTime));
+		}
+
+		// total hits are counted only up to the end of the page, enough to choose the plan
+		SearchRequest exactSearchRequest = searchRequestFactory.apply(createFullTextQuery(queryString, null));
+		exactSearchRequest.source().trackTotalHitsUpTo(from + size);
+
+		return executeArtistSearchRequest(exactSearchRequest, blocking)
+				.thenCompose(searchResponse -> {
+					TotalHits totalHits = searchResponse.getHits().getTotalHits();
+					if (totalHits != null && totalHits.value >= from + size) {
+						recordQueryPlan("exact", startTime);
+						return CompletableFuture.completedFuture(toArtistDocuments(searchResponse));
+					}
+
+					String fuzziness = chooseFuzziness(queryString);
+					if (fuzziness == null) {
+						recordQueryPlan("exact_short_query", startTime);
+						return CompletableFuture.completedFuture(toArtistDocuments(searchResponse));
+					}
+
+					return executeArtistSearch(searchRequestFactory.apply(createFullTextQuery(queryString, fuzziness)), blocking)
+							.whenComplete((fuzzyResult, failure) -> recordQueryPlan("exact_then_fuzzy", startTime));
+				});
+	}
+
+	private void recordQueryPlan(String path, long startTime) {
+		meterRegistry.timer("search.query.plan", "path", path)
+				.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * returns null if the query is too short for fuzzy matching, 2 edits for long queries and 1 edit otherwise
+	 *
+	 * @param queryString
+	 * @return
+	 */
+	private String chooseFuzziness(String queryString) {
+		int length = queryString.trim().length();
+		if (length < fuzzyMinQueryLength) {
+			return null;
+		}
+
+		return length < fuzzyTwoEditsMinQueryLength ? "1" : "2";
+	}
+
+	/**
+	 * re-ranks the cached non-personalized candidates of (query string, includeRanking) with the user's boosts.
+	 * scores are multiplied by the same log2 boost factors the painless script uses, so the ordering is the same
+	 * as function_score as long as the boosted artists are among the candidates
+	 *
+	 * @param artistSearchQuery
+	 * @param adaptiveQueryPlan
+	 * @param userArtistRankingSet
+	 * @param blocking
+	 * @return
+	 */
+	private CompletableFuture<List<ArtistDocument>> searchArtistsWithLocalRerank(ArtistSearchQuery artistSearchQuery, boolean adaptiveQueryPlan,
+	                                                                             Set<ArtistRanking> userArtistRankingSet, boolean blocking) {
+		String candidateKey = (artistSearchQuery.isIncludeRanking() ? "ranking:" : "plain:")
+				+ (adaptiveQueryPlan ? "adaptive:" : "full:")
+				+ artistSearchQuery.getQueryString().trim().toLowerCase(Locale.ROOT);
+
+		// a miss loads the candidates once per key, concurrent misses wait for the same search
+		CompletableFuture<List<ArtistDocument>> candidatesFuture;
+		if (blocking) {
+			candidatesFuture = CompletableFuture.completedFuture(artistCandidateCache.synchronous().get(candidateKey,
+					key -> join(searchArtistCandidates(artistSearchQuery, adaptiveQueryPlan, true))));
+		} else {
+			candidatesFuture = artistCandidateCache.get(candidateKey,
+					(key, executor) -> searchArtistCandidates(artistSearchQuery, adaptiveQueryPlan, false));
+		}
+
+		return candidatesFuture.thenApply(candidates -> rerank(candidates, userArtistRankingSet, artistSearchQuery.getFrom(), artistSearchQuery.getSize()));
+	}
+
+	private CompletableFuture<List<ArtistDocument>> searchArtistCandidates(ArtistSearchQuery artistSearchQuery, boolean adaptiveQueryPlan, boolean blocking) {
+		return searchArtistsWithQueryPlan(artistSearchQuery.getQueryString(), adaptiveQueryPlan, 0, candidateDepth,
+				fullTextQuery -> createFunctionScoreSearchRequest(fullTextQuery, artistSearchQuery.isIncludeRanking(),
+						Collections.emptySet(), 0, candidateDepth), blocking)
+				.thenApply(Collections::unmodifiableList);
+	}
+
+	private List<ArtistDocument> rerank(List<ArtistDocument> candidates, Set<ArtistRanking> userArtistRankingSet, int from, int size) {
+		Map<String, Float> artistIdBoostFactorMap = toBoostFactorMap(userArtistRankingSet);
+
+		// cached candidates are shared, re-ranked results are copies
+		return candidates.stream()
+				.map(candidate -> {
+					Float boostFactor = artistIdBoostFactorMap.get(candidate.getArtistId());
+					return ArtistDocument.builder()
+							.artistId(candidate.getArtistId())
+							.artistName(candidate.getArtistName())
+							.ranking(candidate.getRanking())
+							._score(boostFactor == null ? candidate.get_score() : candidate.get_score() * boostFactor)
+							.build();
+				})
+				.sorted(Comparator.comparing(ArtistDocument::get_score).reversed())
+				.skip(from)
+				.limit(size)
+				.collect(Collectors.toList());
+	}
+
+	private SearchRequest createFunctionScoreSearchRequest(QueryBuilder fullTextQuery, boolean includeRanking, Set<ArtistRanking> userArtistRankingSet,
+	                                                       int from, int size) {
 		SearchRequest searchRequest = new SearchRequest(CONTENT_INDEX_NAME);
 		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
 		searchRequest.source(searchSourceBuilder);
 
+		FunctionScoreQueryBuilder functionScoreQueryBuilder = new FunctionScoreQueryBuilder(fullTextQuery,
+				createScoreFunctions(includeRanking, userArtistRankingSet))
+				.boost(1)
+				.scoreMode(FunctionScoreQuery.ScoreMode.MULTIPLY)
+				.boostMode(CombineFunction.MULTIPLY);
+
+		searchSourceBuilder.query(functionScoreQueryBuilder);
+		searchSourceBuilder.sort("_score", SortOrder.DESC);
+		searchSourceBuilder.from(from);
+		searchSourceBuilder.size(size);
+
+		return searchRequest;
+	}
+
+	/**
+	 * retrieves with full text scoring only, score functions are evaluated only for the top hits of each shard in the rescore window.
+	 * rescore score replaces the query score with the product of the score functions (1 if none matches)
+	 * and multiplies the original score, the same way function_score combines them.
+	 * the window is widened to cover the requested page, so that the hits of a page are scored consistently
+	 *
+	 * @param fullTextQuery
+	 * @param includeRanking
+	 * @param userArtistRankingSet
+	 * @param from
+	 * @param size
+	 * @return
+	 */
+	private SearchRequest createRescoreSearchRequest(QueryBuilder fullTextQuery, boolean includeRanking, Set<ArtistRanking> userArtistRankingSet,
+	                                                 int from, int size) {
+		SearchRequest searchRequest = new SearchRequest(CONTENT_INDEX_NAME);
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+		searchRequest.source(searchSourceBuilder);
+
+		searchSourceBuilder.query(fullTextQuery);
+		searchSourceBuilder.from(from);
+		searchSourceBuilder.size(size);
+
+		FunctionScoreQueryBuilder.FilterFunctionBuilder[] filterFunctionBuilderArray = createScoreFunctions(includeRanking, userArtistRankingSet);
+		if (filterFunctionBuilderArray.length > 0) {
+			FunctionScoreQueryBuilder rescoreQueryBuilder = new FunctionScoreQueryBuilder(QueryBuilders.matchAllQuery(), filterFunctionBuilderArray)
+					.scoreMode(FunctionScoreQuery.ScoreMode.MULTIPLY)
+					.boostMode(CombineFunction.REPLACE);
+
+			QueryRescorerBuilder queryRescorerBuilder = new QueryRescorerBuilder(rescoreQueryBuilder)
+					.windowSize(Math.max(rescoreWindowSize, from + size))
+					.setQueryWeight(1.0f)
+					.setRescoreQueryWeight(1.0f)
+					.setScoreMode(QueryRescoreMode.Multiply);
+
+			// rescore can not be combined with an explicit sort, hits are sorted by _score by default
+			searchSourceBuilder.addRescorer(queryRescorerBuilder);
+		}
+
+		return searchRequest;
+	}
+
+	/**
+	 * exact/prefix clause, and fuzzy clause with the given fuzziness unless it is null
+	 *
+	 * @param queryString
+	 * @param fuzziness
+	 * @return
+	 */
+	private BoolQueryBuilder createFullTextQuery(String queryString, String fuzziness) {
 		// full text search - query string
 		BoolQueryBuilder boolQueryBuilder = new BoolQueryBuilder()
 				.should(new MultiMatchQueryBuilder(queryString)
@@ -73,14 +591,21 @@ public class ElasticSearchService implements Constants {
 						.operator(Operator.AND)
 						.fuzziness("0")
 				)
-				.should(new MultiMatchQueryBuilder(queryString)
-						.field("artist_name.prefix", 0.5f) //artist_name token matches have double boost factor
-						.type(MultiMatchQueryBuilder.Type.BEST_FIELDS)
-						.operator(Operator.AND)
-						.fuzziness("1")
-				)
 				.minimumShouldMatch(1);
 
+		if (fuzziness != null) {
+			boolQueryBuilder.should(new MultiMatchQueryBuilder(queryString)
+					.field("artist_name.prefix", 0.5f) //artist_name token matches have double boost factor
+					.type(MultiMatchQueryBuilder.Type.BEST_FIELDS)
+					.operator(Operator.AND)
+					.fuzziness(fuzziness)
+			);
+		}
+
+		return boolQueryBuilder;
+	}
+
+	private FunctionScoreQueryBuilder.FilterFunctionBuilder[] createScoreFunctions(boolean includeRanking, Set<ArtistRanking> userArtistRankingSet) {
 		List<FunctionScoreQueryBuilder.FilterFunctionBuilder> filterFunctionBuilderList = new ArrayList<>();
 
 		// ranking based score function builder
@@ -93,64 +618,248 @@ public class ElasticSearchService implements Constants {
 		}
 
 		// user profile based score function builder
-		if (includeUserProfile) {
-			UserProfile userProfile = getDocument(USER_PROFILE_INDEX_NAME, userId, UserProfile.class);
-
-			if (userProfile != null && !userProfile.getArtistRankingSet().isEmpty()) {
-				List<String> artistIdList = new ArrayList<>();
-				Map<String, Float> artistIdBoostFactorMap = new HashMap<>();
-				for (ArtistRanking artistRanking : userProfile.getArtistRankingSet()) {
-					artistIdList.add(artistRanking.getArtistId());
-					artistIdBoostFactorMap.put(artistRanking.getArtistId(), log2(artistRanking.getRanking()));
-				}
+		if (!userArtistRankingSet.isEmpty()) {
+			Map<String, Float> artistIdBoostFactorMap = toBoostFactorMap(userArtistRankingSet);
+			List<String> artistIdList = new ArrayList<>(artistIdBoostFactorMap.keySet());
 
-				String scriptStr = "params.boosts.get(doc[params.artistIdFieldName].value)";
-				String artistIdFieldName = "artist_id";
+			String scriptStr = "params.boosts.get(doc[params.artistIdFieldName].value)";
+			String artistIdFieldName = "artist_id";
 
-				Map<String, Object> params = new HashMap<>();
-				params.put("boosts", artistIdBoostFactorMap);
-				params.put("artistIdFieldName", artistIdFieldName);
+			Map<String, Object> params = new HashMap<>();
+			params.put("boosts", artistIdBoostFactorMap);
+			params.put("artistIdFieldName", artistIdFieldName);
 
-				Script script =  new Script(ScriptType.INLINE, "painless", scriptStr, params);
+			Script script =  new Script(ScriptType.INLINE, "painless", scriptStr, params);
 
-				filterFunctionBuilderList.add(
-						new FunctionScoreQueryBuilder.FilterFunctionBuilder(
-								new TermsQueryBuilder(artistIdFieldName, artistIdList),
-								ScoreFunctionBuilders.scriptFunction(script)
-						));
+			filterFunctionBuilderList.add(
+					new FunctionScoreQueryBuilder.FilterFunctionBuilder(
+							new TermsQueryBuilder(artistIdFieldName, artistIdList),
+							ScoreFunctionBuilders.scriptFunction(script)
+					));
+		}
 
-			}
+		return filterFunctionBuilderList.toArray(new FunctionScoreQueryBuilder.FilterFunctionBuilder[filterFunctionBuilderList.size()]);
+	}
+
+	/**
+	 * executes the search and maps the hits to ArtistDocument's.
+	 * lean response path fetches only the ArtistDocument fields and decodes hits from the source bytes without building Strings.
+	 * requests are logged only for the sampled ratio of searches.
+	 *
+	 * @param searchRequest
+	 * @param blocking
+	 * @return
+	 */
+	private CompletableFuture<List<ArtistDocument>> executeArtistSearch(SearchRequest searchRequest, boolean blocking) {
+		return executeArtistSearchRequest(searchRequest, blocking)
+				.thenApply(this::toArtistDocuments);
+	}
+
+	private CompletableFuture<SearchResponse> executeArtistSearchRequest(SearchRequest searchRequest, boolean blocking) {
+		if (leanResponseEnabled) {
+			searchRequest.source().fetchSource(ARTIST_DOCUMENT_SOURCE_FIELDS, null);
 		}
 
-		FunctionScoreQueryBuilder.FilterFunctionBuilder[] filterFunctionBuilderArray = filterFunctionBuilderList.toArray(new FunctionScoreQueryBuilder.FilterFunctionBuilder[filterFunctionBuilderList.size()]);
+		if (searchLogSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < searchLogSampleRate) {
+			log.info("search request: {}", searchRequest);
+		}
 
-		FunctionScoreQueryBuilder functionScoreQueryBuilder = new FunctionScoreQueryBuilder(boolQueryBuilder, filterFunctionBuilderArray)
-				.boost(1)
-				.scoreMode(FunctionScoreQuery.ScoreMode.MULTIPLY)
-				.boostMode(CombineFunction.MULTIPLY);
+		return executeSearch(searchRequest, blocking);
+	}
 
-		searchSourceBuilder.query(functionScoreQueryBuilder);
-		searchSourceBuilder.sort("_score", SortOrder.DESC);
-		searchSourceBuilder.from(from);
-		searchSourceBuilder.size(size);
+	private List<ArtistDocument> toArtistDocuments(SearchResponse searchResponse) {
+		SearchHit[] searchHits = searchResponse.getHits().getHits();
+		List<ArtistDocument> result = new ArrayList<>(searchHits.length);
+		for (SearchHit searchHit : searchHits) {
+			ArtistDocument artistDocument = leanResponseEnabled
+					? toDocumentObject(searchHit.getSourceRef(), ArtistDocument.class)
+					: toDocumentObject(searchHit.getSourceAsString(), ArtistDocument.class);
+			artistDocument.set_score(searchHit.getScore());
+			result.add(artistDocument);
+		}
 
-		log.info("search request: {}", searchRequest);
+		return result;
+	}
 
-		List<ArtistDocument> result = new ArrayList<>();
+	/**
+	 * sends the search request on its own, or as a part of a multi search request if search coalescing is enabled.
+	 * only the scored artist searches are coalesced, point in time pages (no index, pit id returned with the response)
+	 * and suggest requests are always sent on their own
+	 *
+	 * @param searchRequest
+	 * @param blocking
+	 * @return
+	 */
+	private CompletableFuture<SearchResponse> executeSearch(SearchRequest searchRequest, boolean blocking) {
+		if (searchRequestCoalescer.isEnabled() && isCoalescable(searchRequest)) {
+			return searchRequestCoalescer.submit(searchRequest);
+		}
+
+		if (blocking) {
+			try {
+				return CompletableFuture.completedFuture(client.search(searchRequest, RequestOptions.DEFAULT));
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+		}
+
+		CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+		client.searchAsync(searchRequest, RequestOptions.DEFAULT, ActionListener.wrap(future::complete, future::completeExceptionally));
+		return future;
+	}
+
+	private static boolean isCoalescable(SearchRequest searchRequest) {
+		return searchRequest.source() == null
+				|| (searchRequest.source().pointInTimeBuilder() == null && searchRequest.source().suggest() == null);
+	}
+
+	/**
+	 * waits for the future, rethrows the failure unwrapped as the blocking methods of this service do
+	 *
+	 * @param future
+	 * @param <T>
+	 * @return
+	 */
+	private static <T> T join(CompletableFuture<T> future) {
 		try {
-			SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-			result = Arrays.stream(searchResponse.getHits().getHits())
-					.map(searchHit -> {
-						ArtistDocument artistDocument = toDocumentObject(searchHit.getSourceAsString(), ArtistDocument.class);
-						artistDocument.set_score(searchHit.getScore());
-						return artistDocument;
-					})
-					.collect(Collectors.toList());
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe);
+			return future.join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw new RuntimeException(ce.getCause());
 		}
+	}
 
-		return result;
+	private long getCurrentThreadAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return 0;
+	}
+
+	/**
+	 * returns the top artists of the user's profile to be used for boosting, empty if the user has no profile
+	 *
+	 * @param artistSearchQuery
+	 * @return
+	 */
+	private CompletableFuture<Set<ArtistRanking>> getUserProfileArtistRankings(ArtistSearchQuery artistSearchQuery, boolean blocking) {
+		CompletableFuture<UserProfile> userProfileFuture = blocking
+				? CompletableFuture.completedFuture(getUserProfile(artistSearchQuery.getUserId()))
+				: getUserProfileAsync(artistSearchQuery.getUserId());
+
+		return userProfileFuture.thenApply(userProfile -> {
+			if (userProfile == null || userProfile.getArtistRankingSet() == null) {
+				return Collections.emptySet();
+			}
+
+			// the requested size cannot exceed the configured maximum, the boosts of each artist are sent with the query
+			int userProfileSize = artistSearchQuery.getUserProfileSize() != null
+					? Math.max(1, Math.min(artistSearchQuery.getUserProfileSize(), searchUserProfileMaxArtists))
+					: searchUserProfileMaxArtists;
+			return userProfile.topArtistRankings(userProfileSize);
+		});
+	}
+
+	private Map<String, Float> toBoostFactorMap(Set<ArtistRanking> userArtistRankingSet) {
+		Map<String, Float> artistIdBoostFactorMap = new HashMap<>();
+		for (ArtistRanking artistRanking : userArtistRankingSet) {
+			artistIdBoostFactorMap.put(artistRanking.getArtistId(), log2(artistRanking.getRanking()));
+		}
+
+		return artistIdBoostFactorMap;
+	}
+
+	/**
+	 * returns the profile of the given user from the near cache, loads it from elasticsearch on a cache miss.
+	 * users without a profile are cached with an empty profile as well
+	 *
+	 * @param userId
+	 * @return
+	 */
+	public UserProfile getUserProfile(String userId) {
+		if (!userProfileCacheEnabled) {
+			return getDocument(USER_PROFILE_INDEX_NAME, userId, UserProfile.class);
+		}
+
+		return userProfileCache.get(userId, this::loadUserProfile);
+	}
+
+	/**
+	 * non-blocking variant of getUserProfile, a cache miss is loaded with the async client and put into the cache
+	 *
+	 * @param userId
+	 * @return
+	 */
+	public CompletableFuture<UserProfile> getUserProfileAsync(String userId) {
+		UserProfile cachedUserProfile = userProfileCacheEnabled ? userProfileCache.getIfPresent(userId) : null;
+		if (cachedUserProfile != null) {
+			return CompletableFuture.completedFuture(cachedUserProfile);
+		}
+
+		CompletableFuture<UserProfile> future = new CompletableFuture<>();
+		client.getAsync(new GetRequest(USER_PROFILE_INDEX_NAME, userId), RequestOptions.DEFAULT, ActionListener.wrap(
+				getResponse -> {
+					UserProfile userProfile = getResponse.isExists()
+							? toDocumentObject(getResponse.getSourceAsBytesRef(), UserProfile.class)
+							: emptyUserProfile(userId);
+					if (userProfileCacheEnabled) {
+						userProfileCache.put(userId, userProfile);
+					}
+					future.complete(userProfile);
+				},
+				exception -> {
+					// user profile index does not exist yet
+					if (exception instanceof ElasticsearchStatusException
+							&& ((ElasticsearchStatusException) exception).status().equals(RestStatus.NOT_FOUND)) {
+						future.complete(emptyUserProfile(userId));
+					} else {
+						future.completeExceptionally(exception);
+					}
+				}));
+
+		return future;
+	}
+
+	private UserProfile loadUserProfile(String userId) {
+		UserProfile userProfile = getDocument(USER_PROFILE_INDEX_NAME, userId, UserProfile.class);
+		if (userProfile == null) {
+			userProfile = emptyUserProfile(userId);
+		}
+
+		return userProfile;
+	}
+
+	private UserProfile emptyUserProfile(String userId) {
+		return UserProfile.builder()
+				.userId(userId)
+				.artistRankingSet(Collections.emptySet())
+				.build();
+	}
+
+	/**
+	 * replaces the cached profile of the user, with the one that has just been indexed
+	 *
+	 * @param userProfile
+	 */
+	public void refreshCachedUserProfile(UserProfile userProfile) {
+		if (userProfileCacheEnabled) {
+			userProfileCache.put(userProfile.getUserId(), userProfile);
+		}
+	}
+
+	/**
+	 * removes the cached profiles of the given users, next searches of these users load their updated profiles
+	 *
+	 * @param userIds
+	 */
+	public void invalidateCachedUserProfiles(Collection<String> userIds) {
+		if (userProfileCacheEnabled) {
+			userProfileCache.invalidateAll(userIds);
+		}
 	}
 
 	public static float log2(float x)
@@ -205,30 +914,38 @@ public class ElasticSearchService implements Constants {
 
 		T result = null;
 		if (getResponse.isExists()) {
-			result = toDocumentObject(getResponse.getSourceAsString(), clazz);
+			result = toDocumentObject(getResponse.getSourceAsBytesRef(), clazz);
 		}
 
 		return result;
 	}
 
+	/**
+	 * executed in bounded chunks with retry of the rejected items, see BulkRequestExecutor
+	 *
+	 * @param bulkRequest
+	 * @return
+	 */
 	public BulkResponse executeBulkRequest(BulkRequest bulkRequest) {
-		BulkResponse response = null;
-		try {
-			response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-			log.info(" executed " + bulkRequest.numberOfActions() + " bulk documents...");
+		BulkResponse response = bulkRequestExecutor.execute(bulkRequest);
+		log.info(" executed " + bulkRequest.numberOfActions() + " bulk documents...");
 
+		if (response.hasFailures()) {
 			for (BulkItemResponse bulkItemResponse : response.getItems()) {
-				if (response.hasFailures()) {
+				if (bulkItemResponse.isFailed()) {
 					log.error("\t bulk request failure : {}", bulkItemResponse.getFailureMessage());
 				}
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe);
 		}
 
 		return response;
 	}
 
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> toDocumentMap(Object document) {
+		return objectMapper.convertValue(document, Map.class);
+	}
+
 	public String toJsonString(Object document) {
 		String jsonString;
 		try {
@@ -240,6 +957,26 @@ public class ElasticSearchService implements Constants {
 		return jsonString;
 	}
 
+	/**
+	 * decodes the document directly from the source bytes, without converting them to a String first
+	 *
+	 * @param source
+	 * @param clazz
+	 * @param <T>
+	 * @return
+	 */
+	public <T> T toDocumentObject(BytesReference source, Class<T> clazz) {
+		BytesRef bytesRef = source.toBytesRef();
+		T result = null;
+		try {
+			result = objectMapper.readValue(bytesRef.bytes, bytesRef.offset, bytesRef.length, clazz);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+
+		return result;
+	}
+
 	public <T> T toDocumentObject(String jsonString, Class<T> clazz) {
 		T result = null;
 		try {
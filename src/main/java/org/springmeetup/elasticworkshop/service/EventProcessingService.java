@@ -2,29 +2,42 @@ package org.springmeetup.elasticworkshop.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springmeetup.elasticworkshop.model.AggregatedUserArtistRankings;
+import org.springmeetup.elasticworkshop.model.ArtistDocument;
 import org.springmeetup.elasticworkshop.model.ArtistRanking;
 import org.springmeetup.elasticworkshop.model.ListenEvent;
+import org.springmeetup.elasticworkshop.model.SpilledListenEvent;
 import org.springmeetup.elasticworkshop.model.UserProfile;
+import org.springmeetup.elasticworkshop.model.WindowProgress;
 
 import java.io.IOException;
 import java.time.Duration;
@@ -32,6 +45,8 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Service
 @RequiredArgsConstructor
@@ -40,6 +55,43 @@ public class EventProcessingService implements Constants {
 
 	private final RestHighLevelClient client;
 	private final ElasticSearchService elasticSearchService;
+	private final ListenEventWindowAggregator listenEventWindowAggregator;
+	private final ArtistPrefixIndex artistPrefixIndex;
+	private final ListenEventSpillLog listenEventSpillLog;
+
+	private static final String MERGE_USER_ARTIST_RANKINGS_SCRIPT =
+			"if (ctx._source.artist_ranking == null) { ctx._source.artist_ranking = []; } " +
+			"List rankings = ctx._source.artist_ranking; " +
+			"Map positions = new HashMap(); " +
+			"for (int i = 0; i < rankings.size(); i++) { positions.put(rankings.get(i).artist_id, i); } " +
+			"for (def entry : params.counts.entrySet()) { " +
+			"  def position = positions.get(entry.getKey()); " +
+			"  if (position == null) { " +
+			"    rankings.add(['artist_id': entry.getKey(), 'ranking': entry.getValue()]); " +
+			"  } else { " +
+			"    def artistRanking = rankings.get(position); " +
+			"    artistRanking.ranking = (artistRanking.ranking == null ? 0 : artistRanking.ranking) + entry.getValue(); " +
+			"  } " +
+			"} " +
+			"if (params.maxArtists > 0 && rankings.size() > params.maxArtists) { " +
+			"  rankings.sort((a, b) -> Long.compare(b.ranking == null ? 0L : b.ranking.longValue(), a.ranking == null ? 0L : a.ranking.longValue())); " +
+			"  rankings.subList(params.maxArtists, rankings.size()).clear(); " +
+			"}";
+
+	private static final String ARTIST_RANKINGS_AGGREGATION_NAME = "artist_rankings";
+	private static final String USER_ARTIST_RANKINGS_AGGREGATION_NAME = "user_artist_rankings";
+
+	// increments the ranking and refreshes the completion suggester field, the weight is the ranking.
+	// the name and each of its word suffixes are suggester inputs, so that "gom" suggests "Selena Gomez"
+	private static final String UPDATE_CONTENT_RANKING_SCRIPT =
+			"if (ctx._source.ranking == null) { ctx._source.ranking = params.count } else { ctx._source.ranking += params.count } " +
+			"if (ctx._source.artist_name != null) { " +
+			"  List inputs = new ArrayList(); " +
+			"  List tokens = Arrays.asList(ctx._source.artist_name.splitOnToken(' ')); " +
+			"  for (int i = 0; i < tokens.size(); i++) { inputs.add(String.join(' ', tokens.subList(i, tokens.size()))); } " +
+			"  double ranking = ctx._source.ranking; " +
+			"  ctx._source.artist_suggest = ['input': inputs, 'weight': (int) Math.min(ranking, Integer.MAX_VALUE)]; " +
+			"}";
 
 	@Value("${listen-event.index.duration.inmins}")
 	public int listenEventIndexDurationInMins;
@@ -47,6 +99,39 @@ public class EventProcessingService implements Constants {
 	@Value("${artist-ranking.index.duration.inmins}")
 	public int artistRankingIndexDurationInMins;
 
+	@Value("${listen-event.streaming-aggregation.enabled:false}")
+	public boolean streamingAggregationEnabled;
+
+	@Value("${listen-event.aggregation.artist-id-field:artist_id}")
+	public String listenEventArtistIdField;
+
+	@Value("${listen-event.aggregation.user-id-field:user_id}")
+	public String listenEventUserIdField;
+
+	@Value("${elasticsearch.update.retry-on-conflict:3}")
+	public int updateRetryOnConflict;
+
+	@Value("${listen-event.data-stream.enabled:false}")
+	public boolean listenEventDataStreamEnabled;
+
+	@Value("${listen-event.archive.enabled:true}")
+	public boolean listenEventArchiveEnabled;
+
+	@Value("${user-profile.scripted-update.enabled:true}")
+	public boolean userProfileScriptedUpdateEnabled;
+
+	@Value("${user-profile.max-artists:100}")
+	public int userProfileMaxArtists;
+
+	@Value("${listen-event.aggregation.page-size:1000}")
+	public int listenEventAggregationPageSize;
+
+	@Value("${listen-event.bulk.max-actions:1000}")
+	public int listenEventBulkMaxActions;
+
+	@Value("${listen-event.bulk.max-size-in-bytes:5242880}")
+	public long listenEventBulkMaxSizeInBytes;
+
 
 	/**
 	 * return the index name of the current period for indexing event documents
@@ -71,182 +156,578 @@ public class EventProcessingService implements Constants {
 	}
 
 	private String getIndexName(String indexPrefix, int indexDurationInMins, LocalDateTime timestamp) {
+		String indexName = indexPrefix + getWindowStart(indexDurationInMins, timestamp).format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm"));
+		return indexName;
+	}
+
+	/**
+	 * start of the period that the timestamp falls into, periods are aligned to multiples of the duration
+	 */
+	public LocalDateTime getWindowStart(int durationInMins, LocalDateTime timestamp) {
 		long instantSeconds = timestamp.atZone(ZoneId.systemDefault()).toEpochSecond();
 		long instantMinutes = instantSeconds / 60;
-		long indexMinutes = (instantMinutes / indexDurationInMins) * indexDurationInMins;
-
-		timestamp = timestamp.minusMinutes(instantMinutes - indexMinutes);
+		long windowMinutes = (instantMinutes / durationInMins) * durationInMins;
 
-		String indexName = indexPrefix + timestamp.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm"));
-		return indexName;
+		return timestamp.minusMinutes(instantMinutes - windowMinutes).withSecond(0).withNano(0);
 	}
 
+	/**
+	 * updates artist rankings and user profiles with the listen events of the closed windows counted in memory while consuming
+	 * (streaming aggregation). streaming aggregation needs no coordination since each node counts only the events it has consumed,
+	 * windows aggregated from listen-event indices are processed by {@link RankingWindowProcessor}
+	 */
 	public void updateArtistRankings() {
-		AggregatedUserArtistRankings aggregatedUserArtistRankings = queryRecentAggregatedArtistRankingsFromListenEvents();
+		String currentWindowName = getCurrentIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins);
+		listenEventWindowAggregator.drainClosedWindows(currentWindowName)
+				.forEach(this::updateArtistRankings);
+	}
+
+	/**
+	 * updates artist rankings and user profiles with the listen events of the window aggregated from its listen-event index
+	 * (the period of the listen-events data stream in data stream mode), page by page
+	 *
+	 * @param windowStart
+	 * @param workUnitFilter limits the events to a work unit of the window, null for all the events
+	 * @param resumeAfter the last page applied by a previous run of the work unit, null to start from the first page
+	 * @param beforePage called before each page is processed
+	 * @param afterPage called with the position of each page once its counts have been applied
+	 */
+	public void updateArtistRankingsOfWindow(LocalDateTime windowStart, QueryBuilder workUnitFilter, WindowProgress resumeAfter,
+	                                         Runnable beforePage, Consumer<WindowProgress> afterPage) {
+		queryAggregatedArtistRankingsFromListenEvents(windowStart, workUnitFilter, resumeAfter, (aggregatedUserArtistRankings, progress) -> {
+			beforePage.run();
+			updateArtistRankings(aggregatedUserArtistRankings, windowStart);
+			afterPage.accept(progress);
+		});
+	}
+
+	public String getListenEventWindowName(LocalDateTime windowStart) {
+		return getIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins, windowStart);
+	}
+
+	static int getUserBucket(String userId) {
+		return userId == null ? 0 : Math.floorMod(userId.hashCode(), LISTEN_EVENT_USER_BUCKET_COUNT);
+	}
+
+	public void updateArtistRankings(AggregatedUserArtistRankings aggregatedUserArtistRankings) {
+		updateArtistRankings(aggregatedUserArtistRankings, LocalDateTime.now());
+	}
+
+	/**
+	 * @param aggregatedUserArtistRankings
+	 * @param windowTimestamp selects the historical artist_rankings index the counts are added to,
+	 *                        counts of a window processed late are kept in the index of the window's period
+	 */
+	public void updateArtistRankings(AggregatedUserArtistRankings aggregatedUserArtistRankings, LocalDateTime windowTimestamp) {
 		Map<String, Long> artistRankingMap = aggregatedUserArtistRankings.getArtistRankingMap();
 		Map<String, Set<ArtistRanking>> userArtistRankingMap = aggregatedUserArtistRankings.getUserArtistRankingMap();
 
 		BulkRequest bulkUpdateRankingRequest = new BulkRequest();
 
+		String dailyArtistRankingIndexName = getIndexName(ARTIST_RANKING_INDEX_NAME_PREFIX, artistRankingIndexDurationInMins, windowTimestamp);
+
 		// update artist rankings
 		for (String artistId : artistRankingMap.keySet()) {
 			Map<String, Object> parameters = Collections.singletonMap("count", artistRankingMap.get(artistId));
 			Script inline = new Script(ScriptType.INLINE, "painless",
 					"if (ctx._source.ranking == null) { ctx._source.ranking = params.count } else { ctx._source.ranking += params.count }", parameters);
 
-			// update artist ranking in content index
+			// update artist ranking and suggester weight in content index
 			UpdateRequest updateArtistRankingRequest = new UpdateRequest(CONTENT_INDEX_NAME, artistId);
-			updateArtistRankingRequest.script(inline);
+			updateArtistRankingRequest.script(new Script(ScriptType.INLINE, "painless", UPDATE_CONTENT_RANKING_SCRIPT, parameters));
+			updateArtistRankingRequest.retryOnConflict(updateRetryOnConflict);
+			if (artistPrefixIndex.isEnabled()) {
+				// updated ranking is returned with the response, the prefix index is refreshed without another read
+				updateArtistRankingRequest.fetchSource(ARTIST_DOCUMENT_SOURCE_FIELDS, null);
+			}
 			bulkUpdateRankingRequest.add(updateArtistRankingRequest);
 
 			// upsert ArtistRanking document in current daily historical artist_rankings index
-			String currentDailyArtistRankingIndexName = getCurrentIndexName(ARTIST_RANKING_INDEX_NAME_PREFIX, artistRankingIndexDurationInMins);
-			ArtistRanking artistRanking = elasticSearchService.getDocument(currentDailyArtistRankingIndexName, artistId, ArtistRanking.class);
-			if (artistRanking == null) {
-				artistRanking = ArtistRanking.builder()
-						.artistId(artistId)
-						.ranking(artistRankingMap.get(artistId))
-						.build();
-
-				IndexRequest artistRankingIndexRequest = new IndexRequest(currentDailyArtistRankingIndexName);
-				artistRankingIndexRequest.id(artistId);
-				artistRankingIndexRequest.source(elasticSearchService.toJsonString(artistRanking), XContentType.JSON);
-				bulkUpdateRankingRequest.add(artistRankingIndexRequest);
-			} else {
-				UpdateRequest updateDailyArtistRankingRequest = new UpdateRequest(currentDailyArtistRankingIndexName, artistId);
-				updateDailyArtistRankingRequest.script(inline);
-				bulkUpdateRankingRequest.add(updateDailyArtistRankingRequest);
-			}
+			// scripted upsert : the script increments the ranking of the existing document or of the upsert document, no pre-read needed
+			UpdateRequest upsertDailyArtistRankingRequest = new UpdateRequest(dailyArtistRankingIndexName, artistId);
+			upsertDailyArtistRankingRequest.script(inline);
+			upsertDailyArtistRankingRequest.scriptedUpsert(true);
+			upsertDailyArtistRankingRequest.retryOnConflict(updateRetryOnConflict);
+			upsertDailyArtistRankingRequest.upsert(Collections.singletonMap("artist_id", artistId));
+			bulkUpdateRankingRequest.add(upsertDailyArtistRankingRequest);
 		}
 
-		// update user artist rankings
+		// update user artist rankings, re-indexed profiles are kept by their position in the bulk request
+		Map<Integer, UserProfile> updatedUserProfileMap = new LinkedHashMap<>();
 		for (String userId : userArtistRankingMap.keySet()) {
 			Set<ArtistRanking> userArtistRankingSet = userArtistRankingMap.get(userId);
 
-			UserProfile userProfile = elasticSearchService.getDocument(USER_PROFILE_INDEX_NAME, userId, UserProfile.class);
+			if (userProfileScriptedUpdateEnabled) {
+				bulkUpdateRankingRequest.add(createUserProfileUpsertRequest(userId, userArtistRankingSet));
+			} else {
+				UserProfile userProfile = mergeUserProfile(userId, userArtistRankingSet);
+				updatedUserProfileMap.put(bulkUpdateRankingRequest.numberOfActions(), userProfile);
 
-			// new user, index new document
-			if (userProfile == null) {
-				userProfile = UserProfile.builder()
-						.userId(userId)
-						.artistRankingSet(userArtistRankingSet)
-						.build();
+				IndexRequest userProfileIndexRequest = new IndexRequest(USER_PROFILE_INDEX_NAME);
+				userProfileIndexRequest.id(userId);
+				userProfileIndexRequest.source(elasticSearchService.toJsonString(userProfile), XContentType.JSON);
+				bulkUpdateRankingRequest.add(userProfileIndexRequest);
+			}
+		}
+		if (bulkUpdateRankingRequest.numberOfActions() == 0) {
+			return;
+		}
 
-			} else {
-				if (userProfile.getArtistRankingSet() == null) {
-					userProfile.setArtistRankingSet(new HashSet<>());
+		BulkResponse bulkResponse = elasticSearchService.executeBulkRequest(bulkUpdateRankingRequest);
+		if (artistPrefixIndex.isEnabled()) {
+			updateArtistPrefixIndex(bulkResponse);
+		}
+
+		// near cache entries of the touched profiles are refreshed / invalidated once the profiles are indexed.
+		// a profile that could not be indexed is invalidated, the merged profile in memory is not the stored one
+		if (userProfileScriptedUpdateEnabled) {
+			elasticSearchService.invalidateCachedUserProfiles(userArtistRankingMap.keySet());
+		} else {
+			List<String> failedUserIds = new ArrayList<>();
+			for (Map.Entry<Integer, UserProfile> entry : updatedUserProfileMap.entrySet()) {
+				if (bulkResponse.getItems()[entry.getKey()].isFailed()) {
+					failedUserIds.add(entry.getValue().getUserId());
+				} else {
+					elasticSearchService.refreshCachedUserProfile(entry.getValue());
 				}
+			}
+			elasticSearchService.invalidateCachedUserProfiles(failedUserIds);
+		}
+	}
+
+	private void updateArtistPrefixIndex(BulkResponse bulkResponse) {
+		for (BulkItemResponse bulkItemResponse : bulkResponse.getItems()) {
+			if (bulkItemResponse.isFailed() || !CONTENT_INDEX_NAME.equals(bulkItemResponse.getIndex())) {
+				continue;
+			}
+
+			UpdateResponse updateResponse = bulkItemResponse.getResponse();
+			if (updateResponse.getGetResult() != null && updateResponse.getGetResult().sourceRef() != null) {
+				artistPrefixIndex.put(elasticSearchService.toDocumentObject(updateResponse.getGetResult().sourceRef(), ArtistDocument.class));
+			}
+		}
+	}
 
-				// update existing user profile, this part should be definitely refactored
-				for (ArtistRanking artistRanking : userArtistRankingSet) {
-					ArtistRanking existingArtistRanking = userProfile.getArtistRankingSet().stream()
-							.filter(artistRanking1 -> artistRanking1.getArtistId().equals(artistRanking.getArtistId()))
-							.findFirst()
-							.orElseGet(() -> null);
-
-					if (existingArtistRanking == null) {
-						userProfile.getArtistRankingSet().add(artistRanking);
-					} else {
-						long updatedRanking = existingArtistRanking.getRanking() == null ? 0 : existingArtistRanking.getRanking();
-						updatedRanking += artistRanking.getRanking();
-
-						existingArtistRanking.setRanking(updatedRanking);
-					}
+	/**
+	 * sends only the counts of the window, the script merges them into the artist_ranking list of the stored profile
+	 * keyed by artist_id and keeps only the top artists. a new profile is created from the upsert document if the user does not have one yet
+	 *
+	 * @param userId
+	 * @param userArtistRankingSet
+	 * @return
+	 */
+	private UpdateRequest createUserProfileUpsertRequest(String userId, Set<ArtistRanking> userArtistRankingSet) {
+		Map<String, Long> counts = new HashMap<>();
+		for (ArtistRanking artistRanking : userArtistRankingSet) {
+			counts.put(artistRanking.getArtistId(), artistRanking.getRanking());
+		}
+
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("counts", counts);
+		parameters.put("maxArtists", userProfileMaxArtists);
+		Script inline = new Script(ScriptType.INLINE, "painless", MERGE_USER_ARTIST_RANKINGS_SCRIPT, parameters);
+
+		Map<String, Object> upsertDocument = new HashMap<>();
+		upsertDocument.put("user_id", userId);
+		upsertDocument.put("artist_ranking", new ArrayList<>());
+
+		UpdateRequest userProfileUpdateRequest = new UpdateRequest(USER_PROFILE_INDEX_NAME, userId);
+		userProfileUpdateRequest.script(inline);
+		userProfileUpdateRequest.scriptedUpsert(true);
+		userProfileUpdateRequest.retryOnConflict(updateRetryOnConflict);
+		userProfileUpdateRequest.upsert(upsertDocument);
+		return userProfileUpdateRequest;
+	}
+
+	/**
+	 * reads the stored profile and merges the counts of the window in memory, the whole profile is to be re-indexed
+	 *
+	 * @param userId
+	 * @param userArtistRankingSet
+	 * @return
+	 */
+	private UserProfile mergeUserProfile(String userId, Set<ArtistRanking> userArtistRankingSet) {
+		UserProfile userProfile = elasticSearchService.getDocument(USER_PROFILE_INDEX_NAME, userId, UserProfile.class);
+
+		// new user, index new document
+		if (userProfile == null) {
+			userProfile = UserProfile.builder()
+					.userId(userId)
+					.artistRankingSet(userArtistRankingSet)
+					.build();
+		} else {
+			// update existing user profile, merge by artist id
+			Map<String, ArtistRanking> artistRankingMap = new HashMap<>();
+			if (userProfile.getArtistRankingSet() != null) {
+				for (ArtistRanking artistRanking : userProfile.getArtistRankingSet()) {
+					artistRankingMap.put(artistRanking.getArtistId(), artistRanking);
 				}
+			}
+
+			for (ArtistRanking artistRanking : userArtistRankingSet) {
+				artistRankingMap.merge(artistRanking.getArtistId(), artistRanking, (existingArtistRanking, newArtistRanking) -> {
+					long updatedRanking = existingArtistRanking.getRanking() == null ? 0 : existingArtistRanking.getRanking();
+					existingArtistRanking.setRanking(updatedRanking + newArtistRanking.getRanking());
+					return existingArtistRanking;
+				});
+			}
+
+			userProfile.setArtistRankingSet(new HashSet<>(artistRankingMap.values()));
+		}
+
+		// keep only the top artists, profiles of heavy listeners must not grow forever
+		userProfile.setArtistRankingSet(userProfile.topArtistRankings(userProfileMaxArtists));
+
+		return userProfile;
+	}
+
+	/**
+	 * indexes a new listenEvent document in current event index if archiving is enabled
+	 * and counts it in the current window if streaming aggregation is enabled.
+	 * with the spill log enabled an event that cannot be indexed is spilled to be replayed later, it is not lost
+	 * @param listenEvent
+	 * @param partition kafka partition the event is consumed from, the event is counted in the partition's counters
+	 * @return index response, null if the event is not archived or is spilled
+	 */
+	public IndexResponse saveListenEvent(ListenEvent listenEvent, int partition) {
+		String indexName = getCurrentIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins);
+
+		IndexResponse indexResponse = null;
+		if (isListenEventArchiveRequired()) {
+			if (!listenEventSpillLog.isEnabled()) {
+				indexResponse = indexListenEvent(indexName, null, listenEvent);
+			} else {
+				// the id is generated here so that an event indexed by a timed out request is overwritten by its replay
+				String id = UUID.randomUUID().toString();
+				IndexResponse[] archivedIndexResponse = new IndexResponse[1];
+				archiveOrSpillListenEvents(indexName, Collections.singletonMap(id, listenEvent),
+						() -> archivedIndexResponse[0] = indexListenEvent(indexName, id, listenEvent));
+				indexResponse = archivedIndexResponse[0];
+			}
+		}
+
+		if (streamingAggregationEnabled) {
+			listenEventWindowAggregator.add(indexName, partition, listenEvent);
+		}
+
+		return indexResponse;
+	}
+
+	private IndexResponse indexListenEvent(String indexName, String id, ListenEvent listenEvent) {
+		try {
+			return client.index(createListenEventIndexRequest(indexName, id, listenEvent), RequestOptions.DEFAULT);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * indexes the given listenEvents in current event index with bulk requests if archiving is enabled,
+	 * and counts them in the current window if streaming aggregation is enabled.
+	 * throws an exception if any of the events could not be indexed (nor spilled), so that the caller does not commit them as consumed
+	 *
+	 * @param listenEventsByPartition events by the kafka partition they are consumed from, events of a partition are
+	 *                                keyed by their document ids
+	 */
+	public void saveListenEvents(Map<Integer, Map<String, ListenEvent>> listenEventsByPartition) {
+		String indexName = getCurrentIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins);
+
+		// archive first, events are counted only once they are safely indexed (or spilled), re-delivered events are not double counted.
+		// events of all the partitions are archived together, bulk requests are not split by partition
+		if (isListenEventArchiveRequired()) {
+			Map<String, ListenEvent> listenEventMap = new LinkedHashMap<>();
+			listenEventsByPartition.values().forEach(listenEventMap::putAll);
+			if (listenEventSpillLog.isEnabled()) {
+				archiveOrSpillListenEvents(indexName, listenEventMap, () -> archiveListenEvents(indexName, listenEventMap));
+			} else {
+				archiveListenEvents(indexName, listenEventMap);
+			}
+		}
+
+		if (streamingAggregationEnabled) {
+			listenEventsByPartition.forEach((partition, listenEventMap) ->
+					listenEventWindowAggregator.addAll(indexName, partition, listenEventMap.values()));
+		}
+	}
+
+	/**
+	 * the events are spilled without trying elasticsearch while its circuit is open, otherwise they are spilled if indexing fails.
+	 * spilled events are safe, the caller acknowledges them as consumed
+	 */
+	private void archiveOrSpillListenEvents(String indexName, Map<String, ListenEvent> listenEventMap, Runnable archive) {
+		if (!listenEventSpillLog.isCircuitOpen()) {
+			try {
+				archive.run();
+				return;
+			} catch (RuntimeException e) {
+				listenEventSpillLog.openCircuit();
+				log.warn("{} listen events could not be indexed and are spilled: {}", listenEventMap.size(), e.getMessage());
+			}
+		}
+
+		for (Map.Entry<String, ListenEvent> entry : listenEventMap.entrySet()) {
+			if (!listenEventSpillLog.append(indexName, entry.getKey(), entry.getValue())) {
+				throw new RuntimeException("listen event spill log is full, listen events could not be indexed nor spilled");
+			}
+		}
+	}
+
+	/**
+	 * replays spilled events to the listen-event index of the period they were received in (to the data stream in data stream mode).
+	 * throws an ElasticsearchStatusException with the status if elasticsearch rejects an event temporarily (429 / 5xx),
+	 * the batch is replayed again later
+	 *
+	 * @param spilledListenEvents
+	 * @return number of events rejected permanently (e.g. mapping errors), these are dropped
+	 */
+	public int archiveSpilledListenEvents(List<SpilledListenEvent> spilledListenEvents) {
+		BulkRequest bulkRequest = new BulkRequest();
+		for (SpilledListenEvent spilledListenEvent : spilledListenEvents) {
+			bulkRequest.add(createListenEventIndexRequest(spilledListenEvent.getIndexName(), spilledListenEvent.getId(), spilledListenEvent.getListenEvent()));
+		}
 
+		BulkResponse bulkResponse = elasticSearchService.executeBulkRequest(bulkRequest);
+		if (!bulkResponse.hasFailures()) {
+			return 0;
+		}
+
+		int droppedEvents = 0;
+		for (BulkItemResponse bulkItemResponse : bulkResponse.getItems()) {
+			if (!bulkItemResponse.isFailed()
+					|| (listenEventDataStreamEnabled && bulkItemResponse.getFailure().getStatus() == RestStatus.CONFLICT)) {
+				continue;
 			}
 
-			IndexRequest userProfileIndexRequest = new IndexRequest(USER_PROFILE_INDEX_NAME);
-			userProfileIndexRequest.id(userId);
-			userProfileIndexRequest.source(elasticSearchService.toJsonString(userProfile), XContentType.JSON);
-			bulkUpdateRankingRequest.add(userProfileIndexRequest);
+			RestStatus status = bulkItemResponse.getFailure().getStatus();
+			if (status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500) {
+				throw new ElasticsearchStatusException(bulkResponse.buildFailureMessage(), status);
+			}
 
+			log.error("spilled listen event [{}] is rejected and dropped: {}", bulkItemResponse.getId(), bulkItemResponse.getFailureMessage());
+			droppedEvents++;
 		}
-		if (bulkUpdateRankingRequest.numberOfActions() > 0) {
-			elasticSearchService.executeBulkRequest(bulkUpdateRankingRequest);
+
+		return droppedEvents;
+	}
+
+	/**
+	 * a bulk request is flushed whenever it reaches the configured number of actions or size in bytes
+	 */
+	private void archiveListenEvents(String indexName, Map<String, ListenEvent> listenEventMap) {
+		BulkRequest bulkRequest = new BulkRequest();
+		for (Map.Entry<String, ListenEvent> entry : listenEventMap.entrySet()) {
+			bulkRequest.add(createListenEventIndexRequest(indexName, entry.getKey(), entry.getValue()));
+
+			if (bulkRequest.numberOfActions() >= listenEventBulkMaxActions
+					|| bulkRequest.estimatedSizeInBytes() >= listenEventBulkMaxSizeInBytes) {
+				executeListenEventBulkRequest(bulkRequest);
+				bulkRequest = new BulkRequest();
+			}
+		}
+
+		if (bulkRequest.numberOfActions() > 0) {
+			executeListenEventBulkRequest(bulkRequest);
 		}
 	}
 
 	/**
-	 * indexes a new listenEvent document in current event index
+	 * in data stream mode the event is appended to the listen-events data stream with the event time as @timestamp,
+	 * otherwise it is indexed in the given listen-event index
+	 *
+	 * @param indexName
+	 * @param id document id, generated by elasticsearch if null
 	 * @param listenEvent
 	 * @return
 	 */
-	public IndexResponse saveListenEvent(ListenEvent listenEvent) {
-		String indexName = getCurrentIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins);
-		return elasticSearchService.indexDocument(indexName, null, listenEvent);
+	private IndexRequest createListenEventIndexRequest(String indexName, String id, ListenEvent listenEvent) {
+		if (!listenEventDataStreamEnabled) {
+			Map<String, Object> source = elasticSearchService.toDocumentMap(listenEvent);
+			source.put("user_bucket", getUserBucket(listenEvent.getUserId()));
+
+			IndexRequest indexRequest = new IndexRequest(indexName);
+			indexRequest.id(id);
+			indexRequest.source(source);
+			return indexRequest;
+		}
+
+		LocalDateTime timestamp = listenEvent.getTimestamp() != null ? listenEvent.getTimestamp() : LocalDateTime.now();
+
+		Map<String, Object> source = new HashMap<>();
+		source.put("@timestamp", toEpochMillis(timestamp));
+		source.put("artist_id", listenEvent.getArtistId());
+		source.put("user_id", listenEvent.getUserId());
+		source.put("user_bucket", getUserBucket(listenEvent.getUserId()));
+
+		// data streams accept only create, a re-delivered event with the same id is rejected as a conflict
+		IndexRequest indexRequest = new IndexRequest(LISTEN_EVENT_DATA_STREAM_NAME);
+		indexRequest.id(id);
+		indexRequest.opType(DocWriteRequest.OpType.CREATE);
+		indexRequest.source(source);
+		return indexRequest;
 	}
 
-	private AggregatedUserArtistRankings queryRecentAggregatedArtistRankingsFromListenEvents() {
-		String indexName = getPreviousIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins);
-		log.info("querying recent artist rankings from index [{}]", indexName);
+	private long toEpochMillis(LocalDateTime timestamp) {
+		return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * raw listen events must be indexed if the rankings are aggregated from listen-event indices
+	 * otherwise they are only kept when archiving is explicitly enabled
+	 * @return
+	 */
+	private boolean isListenEventArchiveRequired() {
+		return listenEventArchiveEnabled || !streamingAggregationEnabled;
+	}
 
-		SearchRequest searchRequest = new SearchRequest(indexName);
-		searchRequest.indicesOptions(IndicesOptions.fromOptions(true, true, true, true));
+	private void executeListenEventBulkRequest(BulkRequest bulkRequest) {
+		BulkResponse bulkResponse = elasticSearchService.executeBulkRequest(bulkRequest);
+		if (!bulkResponse.hasFailures()) {
+			return;
+		}
 
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+		// conflicts in data stream mode are re-delivered events that have already been written
+		for (BulkItemResponse bulkItemResponse : bulkResponse.getItems()) {
+			if (bulkItemResponse.isFailed()
+					&& !(listenEventDataStreamEnabled && bulkItemResponse.getFailure().getStatus() == RestStatus.CONFLICT)) {
+				throw new RuntimeException(bulkResponse.buildFailureMessage());
+			}
+		}
+	}
 
-		QueryBuilder queryBuilder = QueryBuilders.matchAllQuery();
-		searchSourceBuilder.query(queryBuilder);
-		searchSourceBuilder.aggregation(AggregationBuilders.terms("artist_rankings")
-				.field("artist_id.keyword")
-				.size(1000)
-		);
+	/**
+	 * pages through the listen events of the period (of the work unit) with composite aggregations and passes each page
+	 * to the given consumer as soon as it arrives, so the memory used does not depend on the number of active users / artists.
+	 * artist counts and user / artist counts are paged separately, pages carry only one of the two maps.
+	 * user / artist pairs are sorted by user, so a user's counts can be split between two consecutive pages
+	 *
+	 * @param resumeAfter the page to continue after, the artist pages are skipped when resuming within the user / artist pages
+	 * @param pageConsumer receives each page with its position
+	 */
+	private void queryAggregatedArtistRankingsFromListenEvents(LocalDateTime windowStart, QueryBuilder workUnitFilter, WindowProgress resumeAfter,
+	                                                          BiConsumer<AggregatedUserArtistRankings, WindowProgress> pageConsumer) {
+		String indexName;
+		QueryBuilder windowQuery;
+		if (listenEventDataStreamEnabled) {
+			// the period is selected by event time from the single data stream
+			LocalDateTime windowEnd = windowStart.plusMinutes(listenEventIndexDurationInMins);
+
+			indexName = LISTEN_EVENT_DATA_STREAM_NAME;
+			windowQuery = QueryBuilders.rangeQuery("@timestamp")
+					.gte(toEpochMillis(windowStart))
+					.lt(toEpochMillis(windowEnd))
+					.format("epoch_millis");
+			log.info("querying recent artist rankings from data stream [{}] between {} and {}", indexName, windowStart, windowEnd);
+		} else {
+			indexName = getIndexName(LISTEN_EVENT_INDEX_NAME_PREFIX, listenEventIndexDurationInMins, windowStart);
+			windowQuery = QueryBuilders.matchAllQuery();
+			log.info("querying recent artist rankings from index [{}]", indexName);
+		}
 
-		searchSourceBuilder.aggregation(AggregationBuilders.terms("users")
-				.field("user_id.keyword")
-				.size(1000)
-				.subAggregation(AggregationBuilders.terms("artist_rankings")
-						.field("artist_id.keyword")
-						.size(1000)
-				)
-		);
+		if (workUnitFilter != null) {
+			windowQuery = QueryBuilders.boolQuery()
+					.filter(windowQuery)
+					.filter(workUnitFilter);
+		}
 
-		searchRequest.source(searchSourceBuilder);
+		// events written since the last refresh are made visible, the refresh interval of listen event indices is long
+		refreshListenEvents(indexName);
 
-		final Map<String, Long> artistRankingMap = new HashMap<>();
-		final Map<String, Set<ArtistRanking>> userArtistRankingMap = new HashMap<>();
-		final AggregatedUserArtistRankings aggregatedUserArtistRankings = AggregatedUserArtistRankings.builder()
-				.artistRankingMap(artistRankingMap)
-				.userArtistRankingMap(userArtistRankingMap)
-				.build();
+		List<CompositeValuesSourceBuilder<?>> artistSources = Collections.singletonList(
+				new TermsValuesSourceBuilder("artist_id").field(listenEventArtistIdField));
 
-		try {
-			SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-
-			if (searchResponse.getAggregations() != null) {
-				Terms artistRankingsTerms = searchResponse.getAggregations().get("artist_rankings");
-
-				artistRankingsTerms.getBuckets().stream()
-						.map(bucket -> (Terms.Bucket) bucket) // cast to (Terms.Bucket)
-						.forEach(termsBucket -> artistRankingMap.put(termsBucket.getKeyAsString(), termsBucket.getDocCount()))
-				;
-
-				Terms usersTerms = searchResponse.getAggregations().get("users");
-				usersTerms.getBuckets().stream()
-						.map(bucket -> (Terms.Bucket) bucket) // cast to (Terms.Bucket)
-						.forEach(userBucket -> {
-							String userId = userBucket.getKeyAsString();
-							final Set<ArtistRanking> userArtistRankingSet = new HashSet<>();
-
-							Terms userArtistRankingsTerms = userBucket.getAggregations().get("artist_rankings");
-							userArtistRankingsTerms.getBuckets().stream()
-									.map(artistRankingBucket -> (Terms.Bucket) artistRankingBucket)
-									.forEach(artistRankingBucket -> userArtistRankingSet.add(ArtistRanking.builder()
-													.artistId(artistRankingBucket.getKeyAsString())
-													.ranking(artistRankingBucket.getDocCount())
-													.build()
-											)
-									);
-
-							userArtistRankingMap.put(userId, userArtistRankingSet);
-						});
+		boolean resumeUserArtistRankings = resumeAfter != null && USER_ARTIST_RANKINGS_AGGREGATION_NAME.equals(resumeAfter.getAggregationName());
+		if (!resumeUserArtistRankings) {
+			Map<String, Object> artistRankingsAfterKey = resumeAfter != null ? resumeAfter.getAfterKey() : null;
+			queryCompositeAggregationPages(indexName, windowQuery, ARTIST_RANKINGS_AGGREGATION_NAME, artistSources, artistRankingsAfterKey, (buckets, afterKey) -> {
+				Map<String, Long> artistRankingMap = new HashMap<>();
+				for (CompositeAggregation.Bucket bucket : buckets) {
+					artistRankingMap.put((String) bucket.getKey().get("artist_id"), bucket.getDocCount());
+				}
+
+				pageConsumer.accept(AggregatedUserArtistRankings.builder()
+								.artistRankingMap(artistRankingMap)
+								.userArtistRankingMap(Collections.emptyMap())
+								.build(),
+						new WindowProgress(ARTIST_RANKINGS_AGGREGATION_NAME, afterKey));
+			});
+		}
+
+		List<CompositeValuesSourceBuilder<?>> userArtistSources = Arrays.asList(
+				new TermsValuesSourceBuilder("user_id").field(listenEventUserIdField),
+				new TermsValuesSourceBuilder("artist_id").field(listenEventArtistIdField));
+
+		Map<String, Object> userArtistRankingsAfterKey = resumeUserArtistRankings ? resumeAfter.getAfterKey() : null;
+		queryCompositeAggregationPages(indexName, windowQuery, USER_ARTIST_RANKINGS_AGGREGATION_NAME, userArtistSources, userArtistRankingsAfterKey, (buckets, afterKey) -> {
+			Map<String, Set<ArtistRanking>> userArtistRankingMap = new HashMap<>();
+			for (CompositeAggregation.Bucket bucket : buckets) {
+				userArtistRankingMap.computeIfAbsent((String) bucket.getKey().get("user_id"), userId -> new HashSet<>())
+						.add(ArtistRanking.builder()
+								.artistId((String) bucket.getKey().get("artist_id"))
+								.ranking(bucket.getDocCount())
+								.build()
+						);
 			}
+
+			pageConsumer.accept(AggregatedUserArtistRankings.builder()
+							.artistRankingMap(Collections.emptyMap())
+							.userArtistRankingMap(userArtistRankingMap)
+							.build(),
+					new WindowProgress(USER_ARTIST_RANKINGS_AGGREGATION_NAME, afterKey));
+		});
+	}
+
+	private void refreshListenEvents(String indexName) {
+		try {
+			client.indices().refresh(new RefreshRequest(indexName).indicesOptions(IndicesOptions.lenientExpandOpen()), RequestOptions.DEFAULT);
 		} catch (IOException ioe) {
 			throw new RuntimeException(ioe);
 		}
+	}
+
+	/**
+	 * @param startAfterKey the key to page after, null to start from the first page
+	 * @param pageConsumer receives the buckets of each page with the key of its last bucket
+	 */
+	private void queryCompositeAggregationPages(String indexName, QueryBuilder query, String aggregationName, List<CompositeValuesSourceBuilder<?>> sources,
+	                                            Map<String, Object> startAfterKey,
+	                                            BiConsumer<List<? extends CompositeAggregation.Bucket>, Map<String, Object>> pageConsumer) {
+		Map<String, Object> afterKey = startAfterKey;
+		do {
+			CompositeAggregationBuilder compositeAggregationBuilder = AggregationBuilders.composite(aggregationName, sources)
+					.size(listenEventAggregationPageSize);
+			if (afterKey != null) {
+				compositeAggregationBuilder.aggregateAfter(afterKey);
+			}
+
+			SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+					.query(query)
+					.size(0)
+					.aggregation(compositeAggregationBuilder);
+
+			SearchRequest searchRequest = new SearchRequest(indexName);
+			searchRequest.indicesOptions(IndicesOptions.fromOptions(true, true, true, true));
+			searchRequest.source(searchSourceBuilder);
+
+			SearchResponse searchResponse;
+			try {
+				searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+
+			if (searchResponse.getAggregations() == null) {
+				return;
+			}
+
+			CompositeAggregation compositeAggregation = searchResponse.getAggregations().get(aggregationName);
+			if (compositeAggregation == null || compositeAggregation.getBuckets().isEmpty()) {
+				return;
+			}
 
-		return aggregatedUserArtistRankings;
+			List<? extends CompositeAggregation.Bucket> buckets = compositeAggregation.getBuckets();
+			pageConsumer.accept(buckets, buckets.get(buckets.size() - 1).getKey());
+			afterKey = compositeAggregation.afterKey();
+		} while (afterKey != null);
 	}
 
 
@@ -1,35 +1,36 @@
 package org.springmeetup.elasticworkshop.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
 import org.springmeetup.elasticworkshop.model.ListenEvent;
 
 @Service
+@ConditionalOnProperty(name = "listen-event.consumer.batch.enabled", havingValue = "false", matchIfMissing = true)
 @RequiredArgsConstructor
 @Slf4j
 public class EventReceiverService {
 
 	private final EventProcessingService eventProcessingService;
-	private final ObjectMapper objectMapper;
 
+	/**
+	 * records of a partition are processed in order by the single listener thread the partition is assigned to
+	 *
+	 * @param record
+	 */
 	@KafkaListener(topics = Constants.LISTEN_EVENT_TOPIC_NAME)
-	public void listen(String message) {
-		if (! StringUtils.hasText(message))
+	public void listen(ConsumerRecord<String, ListenEvent> record) {
+		// null if the message could not be deserialized, it has already been logged
+		ListenEvent listenEvent = record.value();
+		if (listenEvent == null)
 			return;
 
-		log.info("Received Messasge from topic: {}, message: {} ", Constants.LISTEN_EVENT_TOPIC_NAME, message);
+		log.info("Received Messasge from topic: {}, message: {} ", Constants.LISTEN_EVENT_TOPIC_NAME, listenEvent);
 
-		try {
-			ListenEvent listenEvent = objectMapper.readValue(message, ListenEvent.class);
-			eventProcessingService.saveListenEvent(listenEvent);
-		} catch (JsonProcessingException ex) {
-			log.error("Json processing exception occured", ex);
-		}
+		eventProcessingService.saveListenEvent(listenEvent, record.partition());
 	}
 
 }
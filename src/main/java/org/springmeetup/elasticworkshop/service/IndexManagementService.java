@@ -0,0 +1,257 @@
+package org.springmeetup.elasticworkshop.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indexlifecycle.DeleteAction;
+import org.elasticsearch.client.indexlifecycle.LifecycleAction;
+import org.elasticsearch.client.indexlifecycle.LifecyclePolicy;
+import org.elasticsearch.client.indexlifecycle.Phase;
+import org.elasticsearch.client.indexlifecycle.PutLifecyclePolicyRequest;
+import org.elasticsearch.client.indexlifecycle.RolloverAction;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.PutComposableIndexTemplateRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.cluster.metadata.ComposableIndexTemplate;
+import org.elasticsearch.cluster.metadata.Template;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * installs the index templates of listen-event, artist-ranking, user-profile, ranking-window-lease and ranking-window-checkpoint indices and creates the content index
+ * at startup, so that no index is created by dynamic mapping. templates and the content index are read from
+ * the elasticsearch resource folder.
+ * installs the index lifecycle policy and the index template of the listen-events data stream in data stream mode,
+ * the data stream itself is created by the first listen event written to it.
+ * artist_suggest of the content documents is maintained by the ranking updates, the documents without it are backfilled at startup
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class IndexManagementService implements Constants {
+
+	private final RestHighLevelClient client;
+
+	private static final String LISTEN_EVENT_DATA_STREAM_MAPPINGS =
+			"{ \"properties\": { " +
+			"\"@timestamp\": { \"type\": \"date\" }, " +
+			"\"artist_id\": { \"type\": \"keyword\" }, " +
+			"\"user_id\": { \"type\": \"keyword\" }, " +
+			"\"user_bucket\": { \"type\": \"integer\" } " +
+			"} }";
+
+	private static final Map<String, String> INDEX_TEMPLATE_RESOURCES;
+	static {
+		Map<String, String> indexTemplateResources = new LinkedHashMap<>();
+		indexTemplateResources.put("listen-event-template", "elasticsearch/listen-event-template.json");
+		indexTemplateResources.put("artist-ranking-template", "elasticsearch/artist-ranking-template.json");
+		indexTemplateResources.put("user-profile-template", "elasticsearch/user-profile-template.json");
+		indexTemplateResources.put("ranking-window-lease-template", "elasticsearch/ranking-window-lease-template.json");
+		indexTemplateResources.put("ranking-window-checkpoint-template", "elasticsearch/ranking-window-checkpoint-template.json");
+		INDEX_TEMPLATE_RESOURCES = Collections.unmodifiableMap(indexTemplateResources);
+	}
+
+	private static final String CONTENT_INDEX_RESOURCE = "elasticsearch/content-index.json";
+
+	private static final String ARTIST_SUGGEST_MAPPINGS =
+			"{ \"properties\": { " +
+			"\"artist_suggest\": { \"type\": \"completion\", \"analyzer\": \"q_prefix\" } " +
+			"} }";
+
+	/**
+	 * same inputs and weight as the ranking update script sets, a document without ranking gets weight 0
+	 */
+	private static final String BACKFILL_ARTIST_SUGGEST_SCRIPT =
+			"List inputs = new ArrayList(); " +
+			"List tokens = Arrays.asList(ctx._source.artist_name.splitOnToken(' ')); " +
+			"for (int i = 0; i < tokens.size(); i++) { inputs.add(String.join(' ', tokens.subList(i, tokens.size()))); } " +
+			"double ranking = ctx._source.ranking == null ? 0 : ctx._source.ranking; " +
+			"ctx._source.artist_suggest = ['input': inputs, 'weight': (int) Math.min(ranking, Integer.MAX_VALUE)];";
+
+	@Value("${elasticsearch.index-templates.enabled:true}")
+	private boolean indexTemplatesEnabled;
+
+	@Value("${listen-event.data-stream.enabled:false}")
+	private boolean listenEventDataStreamEnabled;
+
+	@Value("${listen-event.data-stream.rollover.max-age:1d}")
+	private String listenEventRolloverMaxAge;
+
+	@Value("${listen-event.data-stream.rollover.max-primary-shard-size:10gb}")
+	private String listenEventRolloverMaxPrimaryShardSize;
+
+	@Value("${listen-event.data-stream.retention:7d}")
+	private String listenEventRetention;
+
+	/**
+	 * templates are overwritten with the ones of this version, an existing content index is left as it is.
+	 * elasticsearch may not be reachable at startup, a failure is logged and the application keeps running
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void installIndexTemplates() {
+		if (!indexTemplatesEnabled) {
+			return;
+		}
+
+		try {
+			for (Map.Entry<String, String> entry : INDEX_TEMPLATE_RESOURCES.entrySet()) {
+				putIndexTemplate(entry.getKey(), readResource(entry.getValue()));
+			}
+			createIndexIfAbsent(CONTENT_INDEX_NAME, readResource(CONTENT_INDEX_RESOURCE));
+			log.info("index templates are installed");
+		} catch (Exception e) {
+			log.warn("index templates could not be installed", e);
+			return;
+		}
+
+		try {
+			putArtistSuggestMappingIfAbsent();
+			backfillArtistSuggest();
+		} catch (Exception e) {
+			log.warn("artist_suggest of the content index could not be backfilled", e);
+		}
+	}
+
+	/**
+	 * a content index created before the completion suggester has no artist_suggest mapping, it is added in place
+	 */
+	private void putArtistSuggestMappingIfAbsent() throws IOException {
+		Map<String, MappingMetadata> mappings = client.indices()
+				.getMapping(new GetMappingsRequest().indices(CONTENT_INDEX_NAME), RequestOptions.DEFAULT)
+				.mappings();
+		for (MappingMetadata mappingMetadata : mappings.values()) {
+			Object properties = mappingMetadata.sourceAsMap().get("properties");
+			if (properties instanceof Map && ((Map<?, ?>) properties).containsKey("artist_suggest")) {
+				return;
+			}
+		}
+
+		client.indices().putMapping(new PutMappingRequest(CONTENT_INDEX_NAME).source(ARTIST_SUGGEST_MAPPINGS, XContentType.JSON), RequestOptions.DEFAULT);
+		log.info("artist_suggest mapping is added to index [{}]", CONTENT_INDEX_NAME);
+	}
+
+	/**
+	 * sets artist_suggest of the artists that have none, the ones indexed before the mapping or without a ranking update yet.
+	 * the update by query runs as a task so that the startup does not wait for it, a document updated by the ranking update
+	 * meanwhile is skipped as a version conflict, the ranking update sets artist_suggest itself
+	 */
+	private void backfillArtistSuggest() throws IOException {
+		UpdateByQueryRequest updateByQueryRequest = new UpdateByQueryRequest(CONTENT_INDEX_NAME)
+				.setQuery(QueryBuilders.boolQuery()
+						.filter(QueryBuilders.existsQuery("artist_name"))
+						.mustNot(QueryBuilders.existsQuery("artist_suggest")))
+				.setScript(new Script(ScriptType.INLINE, "painless", BACKFILL_ARTIST_SUGGEST_SCRIPT, Collections.emptyMap()))
+				.setAbortOnVersionConflict(false);
+
+		TaskSubmissionResponse taskSubmissionResponse = client.submitUpdateByQueryTask(updateByQueryRequest, RequestOptions.DEFAULT);
+		log.info("artist_suggest backfill of index [{}] is started as task [{}]", CONTENT_INDEX_NAME, taskSubmissionResponse.getTask());
+	}
+
+	/**
+	 * high level client of this version takes composable templates only as objects, the json is sent with the low level client
+	 */
+	private void putIndexTemplate(String name, String templateJson) throws IOException {
+		Request request = new Request("PUT", "/_index_template/" + name);
+		request.setJsonEntity(templateJson);
+		client.getLowLevelClient().performRequest(request);
+	}
+
+	private void createIndexIfAbsent(String indexName, String indexJson) throws IOException {
+		if (client.indices().exists(new GetIndexRequest(indexName), RequestOptions.DEFAULT)) {
+			return;
+		}
+
+		client.indices().create(new CreateIndexRequest(indexName).source(indexJson, XContentType.JSON), RequestOptions.DEFAULT);
+		log.info("index [{}] is created", indexName);
+	}
+
+	private String readResource(String path) throws IOException {
+		try (InputStream inputStream = new ClassPathResource(path).getInputStream()) {
+			return StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * elasticsearch may not be reachable at startup, a failure is logged and the application keeps running
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void installListenEventDataStreamTemplates() {
+		if (!listenEventDataStreamEnabled) {
+			return;
+		}
+
+		try {
+			putListenEventLifecyclePolicy();
+			putListenEventIndexTemplate();
+			log.info("listen event data stream policy and template are installed");
+		} catch (Exception e) {
+			log.warn("listen event data stream policy and template could not be installed", e);
+		}
+	}
+
+	/**
+	 * backing indices roll over by age or size in hot phase and are deleted once they are older than the retention
+	 */
+	private void putListenEventLifecyclePolicy() throws IOException {
+		Map<String, LifecycleAction> hotActions = Collections.singletonMap(RolloverAction.NAME, new RolloverAction(
+				null,
+				ByteSizeValue.parseBytesSizeValue(listenEventRolloverMaxPrimaryShardSize, "listen-event.data-stream.rollover.max-primary-shard-size"),
+				TimeValue.parseTimeValue(listenEventRolloverMaxAge, "listen-event.data-stream.rollover.max-age"),
+				null));
+		Map<String, LifecycleAction> deleteActions = Collections.singletonMap(DeleteAction.NAME, new DeleteAction());
+
+		Map<String, Phase> phases = new HashMap<>();
+		phases.put("hot", new Phase("hot", TimeValue.ZERO, hotActions));
+		phases.put("delete", new Phase("delete",
+				TimeValue.parseTimeValue(listenEventRetention, "listen-event.data-stream.retention"), deleteActions));
+
+		client.indexLifecycle().putLifecyclePolicy(
+				new PutLifecyclePolicyRequest(new LifecyclePolicy(LISTEN_EVENT_LIFECYCLE_POLICY_NAME, phases)),
+				RequestOptions.DEFAULT);
+	}
+
+	private void putListenEventIndexTemplate() throws IOException {
+		Settings settings = Settings.builder()
+				.put("index.number_of_shards", 1)
+				.put("index.lifecycle.name", LISTEN_EVENT_LIFECYCLE_POLICY_NAME)
+				.put("index.refresh_interval", "30s")
+				.put("index.codec", "best_compression")
+				.build();
+
+		Template template = new Template(settings, new CompressedXContent(LISTEN_EVENT_DATA_STREAM_MAPPINGS), null);
+		ComposableIndexTemplate composableIndexTemplate = new ComposableIndexTemplate(
+				Collections.singletonList(LISTEN_EVENT_DATA_STREAM_NAME), template, null, 100L, null, null,
+				new ComposableIndexTemplate.DataStreamTemplate());
+
+		client.indices().putIndexTemplate(new PutComposableIndexTemplateRequest()
+				.name(LISTEN_EVENT_DATA_STREAM_NAME + "-template")
+				.indexTemplate(composableIndexTemplate), RequestOptions.DEFAULT);
+	}
+}
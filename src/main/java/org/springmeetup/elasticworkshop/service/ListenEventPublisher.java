@@ -0,0 +1,187 @@
+package org.springmeetup.elasticworkshop.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+import org.springmeetup.elasticworkshop.model.ListenEventBatchResult;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * sends listen events to the listen-events topic, keyed by user_id so that all the events of a user go to the same partition
+ * and are consumed in order by the same thread. events are serialized by the producer, as json or in the binary format
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ListenEventPublisher {
+
+	private final KafkaTemplate<String, ListenEvent> kafkaTemplate;
+	private final ObjectMapper objectMapper;
+
+	@Value("${listen-event.bulk-endpoint.max-errors:10}")
+	private int maxErrors;
+
+	@Value("${listen-event.bulk-endpoint.ack-timeout-ms:120000}")
+	private long ackTimeoutMs;
+
+	private ObjectReader listenEventReader;
+
+	@PostConstruct
+	public void init() {
+		listenEventReader = objectMapper.readerFor(ListenEvent.class);
+	}
+
+	/**
+	 * sends the event eventCount times, does not wait for the acknowledgements
+	 *
+	 * @param listenEvent
+	 * @param eventCount
+	 */
+	public void publish(ListenEvent listenEvent, int eventCount) {
+		if (listenEvent.getTimestamp() == null) {
+			listenEvent.setTimestamp(LocalDateTime.now());
+		}
+
+		for (int i = 0; i < eventCount; i++) {
+			kafkaTemplate.send(Constants.LISTEN_EVENT_TOPIC_NAME, listenEvent.getUserId(), listenEvent);
+		}
+	}
+
+	/**
+	 * reads newline delimited json events one at a time and sends each as soon as it is parsed, the batch is never held in memory.
+	 * a line that does not map to a listen event is skipped, malformed json ends the batch since the following lines cannot be
+	 * told apart reliably. waits until the producer has acknowledged or failed every event sent
+	 *
+	 * @param inputStream
+	 * @return counts of the batch and its first errors
+	 */
+	public ListenEventBatchResult publishAll(InputStream inputStream) {
+		BatchAcknowledgements batchAcknowledgements = new BatchAcknowledgements();
+		List<String> errors = Collections.synchronizedList(new ArrayList<>());
+		long received = 0;
+		long invalid = 0;
+		boolean complete = true;
+
+		try (MappingIterator<ListenEvent> listenEventIterator = listenEventReader.readValues(inputStream)) {
+			while (true) {
+				ListenEvent listenEvent;
+				try {
+					if (!listenEventIterator.hasNextValue()) {
+						break;
+					}
+					listenEvent = listenEventIterator.nextValue();
+				} catch (JsonParseException e) {
+					invalid++;
+					complete = false;
+					addError(errors, toError(e));
+					break;
+				} catch (JsonProcessingException e) {
+					invalid++;
+					addError(errors, toError(e));
+					continue;
+				}
+
+				received++;
+				if (listenEvent.getTimestamp() == null) {
+					listenEvent.setTimestamp(LocalDateTime.now());
+				}
+
+				batchAcknowledgements.pending.incrementAndGet();
+				try {
+					kafkaTemplate.send(Constants.LISTEN_EVENT_TOPIC_NAME, listenEvent.getUserId(), listenEvent)
+							.addCallback(
+									sendResult -> batchAcknowledgements.acknowledge(true),
+									throwable -> {
+										addError(errors, throwable.getMessage());
+										batchAcknowledgements.acknowledge(false);
+									});
+				} catch (RuntimeException e) {
+					// e.g. the event cannot be serialized, or the producer buffer stays full longer than max.block.ms
+					addError(errors, e.getMessage());
+					batchAcknowledgements.acknowledge(false);
+				}
+			}
+		} catch (IOException ioe) {
+			// the client closed the connection or the body is cut, events sent so far are still reported
+			log.warn("listen event batch could not be read to its end", ioe);
+			complete = false;
+		}
+
+		if (!batchAcknowledgements.await(ackTimeoutMs)) {
+			log.warn("{} listen events were not acknowledged in {} ms", batchAcknowledgements.pending.get(), ackTimeoutMs);
+		}
+
+		return ListenEventBatchResult.builder()
+				.received(received)
+				.acknowledged(batchAcknowledgements.acknowledged.get())
+				.failed(batchAcknowledgements.failed.get())
+				.invalid(invalid)
+				.errors(new ArrayList<>(errors))
+				.complete(complete)
+				.build();
+	}
+
+	private String toError(JsonProcessingException e) {
+		return e.getLocation() != null
+				? "line " + e.getLocation().getLineNr() + ": " + e.getOriginalMessage()
+				: e.getOriginalMessage();
+	}
+
+	private void addError(List<String> errors, String error) {
+		if (errors.size() < maxErrors) {
+			errors.add(error);
+		}
+	}
+
+	/**
+	 * counts the acknowledgements of a batch, the batch is waited for with the counts only, not with a future per event
+	 */
+	private static class BatchAcknowledgements {
+
+		private final AtomicLong pending = new AtomicLong();
+		private final AtomicLong acknowledged = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+
+		private void acknowledge(boolean success) {
+			(success ? acknowledged : failed).incrementAndGet();
+			if (pending.decrementAndGet() == 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		private synchronized boolean await(long timeoutMs) {
+			long deadline = System.currentTimeMillis() + timeoutMs;
+			try {
+				while (pending.get() > 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * replays the events of the spill log as bulk requests in the background, oldest first.
+ * a replay failing for a reason that passes (429, 5xx or a connection error) opens the circuit of the spill log and is retried
+ * at the next drain, a successful replay closes it so that listen events are indexed directly again.
+ * a batch rejected as a whole for any other reason would be rejected again, its events are dropped like the events rejected
+ * one by one, so that the spill log does not fill up behind it.
+ *
+ * metrics
+ *  listen-event.spill.drain.rate : events per second replayed by the last drain
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ListenEventSpillDrainer {
+
+	private final ListenEventSpillLog listenEventSpillLog;
+	private final EventProcessingService eventProcessingService;
+	private final MeterRegistry meterRegistry;
+
+	@Value("${listen-event.spill.drain.interval-ms:1000}")
+	private long drainIntervalMs;
+
+	@Value("${listen-event.spill.drain.batch-size:1000}")
+	private int drainBatchSize;
+
+	private volatile double drainRate;
+
+	private ScheduledExecutorService scheduledExecutorService;
+
+	@PostConstruct
+	public void init() {
+		if (!listenEventSpillLog.isEnabled()) {
+			return;
+		}
+
+		Gauge.builder("listen-event.spill.drain.rate", this, drainer -> drainer.drainRate)
+				.baseUnit("events/s")
+				.register(meterRegistry);
+
+		scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "listen-event-spill-drainer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduledExecutorService.scheduleWithFixedDelay(this::drain, drainIntervalMs, drainIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (scheduledExecutorService != null) {
+			scheduledExecutorService.shutdown();
+		}
+	}
+
+	/**
+	 * replays batches until the spill log is empty or a replay fails
+	 */
+	void drain() {
+		listenEventSpillLog.force();
+
+		long startTime = System.nanoTime();
+		long drainedEvents = 0;
+		try {
+			ListenEventSpillLog.Batch batch;
+			while (!(batch = listenEventSpillLog.read(drainBatchSize)).isEmpty()) {
+				int droppedEvents = replay(batch);
+				listenEventSpillLog.commit(batch);
+
+				drainedEvents += batch.getEvents().size();
+				meterRegistry.counter("listen-event.spill.events", "result", "drained").increment(batch.getEvents().size() - droppedEvents);
+				meterRegistry.counter("listen-event.spill.events", "result", "dropped").increment(droppedEvents + batch.getSkippedEvents());
+			}
+
+			if (drainedEvents > 0) {
+				listenEventSpillLog.closeCircuit();
+				log.info("replayed {} spilled listen events", drainedEvents);
+			}
+		} catch (Exception e) {
+			if (isRetryable(e)) {
+				listenEventSpillLog.openCircuit();
+				log.warn("spilled listen events could not be replayed, {} replayed before the failure: {}", drainedEvents, e.getMessage());
+			} else {
+				log.error("spilled listen events could not be replayed, {} replayed before the failure", drainedEvents, e);
+			}
+		} finally {
+			drainRate = drainedEvents / (Math.max(System.nanoTime() - startTime, 1) / 1e9);
+		}
+	}
+
+	/**
+	 * @return number of events dropped
+	 */
+	private int replay(ListenEventSpillLog.Batch batch) {
+		if (batch.getEvents().isEmpty()) {
+			return 0;
+		}
+
+		try {
+			return eventProcessingService.archiveSpilledListenEvents(batch.getEvents());
+		} catch (RuntimeException e) {
+			if (isRetryable(e)) {
+				throw e;
+			}
+
+			log.error("{} spilled listen events are rejected and dropped", batch.getEvents().size(), e);
+			return batch.getEvents().size();
+		}
+	}
+
+	/**
+	 * @return true if elasticsearch is overloaded, failing or unreachable
+	 */
+	static boolean isRetryable(Throwable throwable) {
+		for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ElasticsearchStatusException) {
+				return isRetryable(((ElasticsearchStatusException) cause).status().getStatus());
+			}
+			if (cause instanceof ResponseException) {
+				return isRetryable(((ResponseException) cause).getResponse().getStatusLine().getStatusCode());
+			}
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRetryable(int status) {
+		return status == RestStatus.TOO_MANY_REQUESTS.getStatus() || status >= 500;
+	}
+}
@@ -0,0 +1,428 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.config.ListenEventBinaryCodec;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+import org.springmeetup.elasticworkshop.model.SpilledListenEvent;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * local write-behind log of the listen events that could not be indexed, replayed by {@link ListenEventSpillDrainer}
+ * once elasticsearch recovers. events are appended to memory-mapped segment files of fixed size, a segment is deleted
+ * once all of its events are replayed. disk usage is bounded by the maximum number of segments, an event that does not fit
+ * is rejected and the caller fails as it would without the spill log.
+ *
+ * segment : read position (4 bytes) | records ...
+ * record : payload length (4 bytes) | payload crc32 (4 bytes) | index name | document id | binary listen event
+ *
+ * the read position is kept in the segment, so the replay resumes where it stopped after a restart.
+ * written records survive a crash of the application (page cache), segments are forced to disk at each drain.
+ * a record whose crc does not match (torn write) ends the segment.
+ *
+ * spilled events are replayed into the period they were spilled in, so the oldest event timestamp of the backlog is kept
+ * per segment, {@link RankingWindowProcessor} does not aggregate that period or later ones until the backlog is replayed.
+ *
+ * while elasticsearch is failing the circuit is open, events are spilled without trying elasticsearch first
+ * so that the consumer does not wait for a timeout with each event.
+ *
+ * metrics
+ *  listen-event.spill.events : events tagged with result spilled, rejected (spill log full), drained and dropped (rejected by elasticsearch
+ *  or unreadable)
+ *  listen-event.spill.backlog.events / listen-event.spill.backlog.bytes : events and bytes waiting to be replayed
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ListenEventSpillLog {
+
+	private final MeterRegistry meterRegistry;
+
+	private static final String SEGMENT_FILE_PREFIX = "segment-";
+	private static final String SEGMENT_FILE_SUFFIX = ".log";
+	private static final int SEGMENT_HEADER_SIZE = 4;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int NULL_LENGTH = 0xFFFF;
+
+	@Value("${listen-event.spill.enabled:false}")
+	private boolean enabled;
+
+	@Value("${listen-event.spill.directory:${java.io.tmpdir}/elastic-workshop/spill}")
+	private String directory;
+
+	@Value("${listen-event.spill.segment-size-bytes:67108864}")
+	private int segmentSizeBytes;
+
+	@Value("${listen-event.spill.max-size-bytes:1073741824}")
+	private long maxSizeBytes;
+
+	@Value("${listen-event.spill.circuit-open-ms:30000}")
+	private long circuitOpenMs;
+
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private long nextSequence;
+
+	private final AtomicLong backlogEvents = new AtomicLong();
+	private final AtomicLong backlogBytes = new AtomicLong();
+
+	private volatile long circuitOpenUntil;
+
+	/**
+	 * segments left by a previous run are recovered, their events are replayed first
+	 */
+	@PostConstruct
+	public synchronized void init() {
+		if (!enabled) {
+			return;
+		}
+
+		meterRegistry.gauge("listen-event.spill.backlog.events", backlogEvents);
+		meterRegistry.gauge("listen-event.spill.backlog.bytes", backlogBytes);
+
+		try {
+			Path directoryPath = Paths.get(directory);
+			Files.createDirectories(directoryPath);
+
+			SortedMap<Long, Path> segmentPaths = new TreeMap<>();
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directoryPath, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+				for (Path path : directoryStream) {
+					String fileName = path.getFileName().toString();
+					segmentPaths.put(Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length())), path);
+				}
+			}
+
+			for (Map.Entry<Long, Path> entry : segmentPaths.entrySet()) {
+				segments.addLast(recoverSegment(entry.getKey(), entry.getValue()));
+				nextSequence = entry.getKey() + 1;
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+
+		if (backlogEvents.get() > 0) {
+			log.info("recovered {} spilled listen events in {} segments", backlogEvents.get(), segments.size());
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		force();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public boolean isCircuitOpen() {
+		return System.currentTimeMillis() < circuitOpenUntil;
+	}
+
+	public void openCircuit() {
+		circuitOpenUntil = System.currentTimeMillis() + circuitOpenMs;
+	}
+
+	public void closeCircuit() {
+		circuitOpenUntil = 0;
+	}
+
+	/**
+	 * @param indexName
+	 * @param id
+	 * @param listenEvent
+	 * @return false if the spill log is full
+	 */
+	public synchronized boolean append(String indexName, String id, ListenEvent listenEvent) {
+		byte[] payload = encode(indexName, id, listenEvent);
+		int recordSize = RECORD_HEADER_SIZE + payload.length;
+
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.writePosition + recordSize > segment.buffer.capacity()) {
+			if ((long) (segments.size() + 1) * segmentSizeBytes > maxSizeBytes || SEGMENT_HEADER_SIZE + recordSize > segmentSizeBytes) {
+				meterRegistry.counter("listen-event.spill.events", "result", "rejected").increment();
+				return false;
+			}
+			segment = createSegment(nextSequence++);
+			segments.addLast(segment);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(segment.writePosition);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		segment.writePosition += recordSize;
+		segment.oldestTimestamp = Math.min(segment.oldestTimestamp, getBacklogTimestamp(listenEvent, System.currentTimeMillis()));
+
+		backlogEvents.incrementAndGet();
+		backlogBytes.addAndGet(recordSize);
+		meterRegistry.counter("listen-event.spill.events", "result", "spilled").increment();
+		return true;
+	}
+
+	/**
+	 * reads the oldest events that have not been replayed, the read position is moved only by {@link #commit(Batch)}.
+	 * records that cannot be decoded (e.g. written by an unknown version) are skipped, they are passed over by the commit
+	 *
+	 * @param maxEvents
+	 * @return empty batch if there is nothing to replay
+	 */
+	public synchronized Batch read(int maxEvents) {
+		// fully replayed segments are deleted, except the one being written
+		while (segments.size() > 1 && segments.peekFirst().readPosition >= segments.peekFirst().writePosition) {
+			deleteSegment(segments.pollFirst());
+		}
+
+		Segment segment = segments.peekFirst();
+		List<SpilledListenEvent> events = new ArrayList<>();
+		if (segment == null) {
+			return new Batch(null, events, 0, 0, 0);
+		}
+
+		int skippedEvents = 0;
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(segment.readPosition);
+		while (events.size() + skippedEvents < maxEvents && buffer.position() < segment.writePosition) {
+			int position = buffer.position();
+			int length = buffer.getInt();
+			buffer.getInt();
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			try {
+				events.add(decode(payload));
+			} catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+				log.error("spill log segment [{}] has an unreadable record at {}, it is skipped", segment.path, position, e);
+				skippedEvents++;
+			}
+		}
+
+		return new Batch(segment, events, skippedEvents, buffer.position(), buffer.position() - segment.readPosition);
+	}
+
+	/**
+	 * marks the events of the batch as replayed
+	 *
+	 * @param batch
+	 */
+	public synchronized void commit(Batch batch) {
+		if (batch.segment == null || batch.isEmpty()) {
+			return;
+		}
+
+		batch.segment.readPosition = batch.endPosition;
+		batch.segment.buffer.putInt(0, batch.endPosition);
+		if (batch.segment.readPosition >= batch.segment.writePosition) {
+			batch.segment.oldestTimestamp = Long.MAX_VALUE;
+		}
+
+		backlogEvents.addAndGet(-(batch.events.size() + batch.skippedEvents));
+		backlogBytes.addAndGet(-batch.bytes);
+	}
+
+	/**
+	 * @return the oldest timestamp of the events that have not been replayed, null if there are none. all the events of
+	 * a partly replayed segment are considered, so the timestamp may be older than the oldest event left
+	 */
+	public synchronized LocalDateTime getOldestBacklogTimestamp() {
+		long oldestTimestamp = Long.MAX_VALUE;
+		for (Segment segment : segments) {
+			if (segment.readPosition < segment.writePosition) {
+				oldestTimestamp = Math.min(oldestTimestamp, segment.oldestTimestamp);
+			}
+		}
+
+		return oldestTimestamp == Long.MAX_VALUE
+				? null
+				: LocalDateTime.ofInstant(Instant.ofEpochMilli(oldestTimestamp), ZoneId.systemDefault());
+	}
+
+	/**
+	 * an event is indexed into the period of the time it is spilled, or of its timestamp in data stream mode, the earlier of the two
+	 * is kept
+	 */
+	private static long getBacklogTimestamp(ListenEvent listenEvent, long spilledAt) {
+		if (listenEvent.getTimestamp() == null) {
+			return spilledAt;
+		}
+		return Math.min(spilledAt, toEpochMillis(listenEvent.getTimestamp()));
+	}
+
+	private static long toEpochMillis(LocalDateTime timestamp) {
+		return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	public synchronized void force() {
+		segments.forEach(segment -> segment.buffer.force());
+	}
+
+	private Segment createSegment(long sequence) {
+		Path path = Paths.get(directory, SEGMENT_FILE_PREFIX + String.format("%020d", sequence) + SEGMENT_FILE_SUFFIX);
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the mapped region of a new file is zero filled, a zero length marks the end of the records
+			MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+			buffer.putInt(0, SEGMENT_HEADER_SIZE);
+			return new Segment(path, buffer, SEGMENT_HEADER_SIZE, SEGMENT_HEADER_SIZE);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	private Segment recoverSegment(long sequence, Path path) throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
+			int readPosition = Math.max(buffer.getInt(0), SEGMENT_HEADER_SIZE);
+			long oldestTimestamp = Long.MAX_VALUE;
+
+			int position = SEGMENT_HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+					break;
+				}
+
+				byte[] payload = new byte[length];
+				ByteBuffer recordBuffer = buffer.duplicate();
+				recordBuffer.position(position + RECORD_HEADER_SIZE);
+				recordBuffer.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+					log.warn("spill log segment [{}] has a torn record at {}, the rest of the segment is ignored", path, position);
+					break;
+				}
+
+				if (position >= readPosition) {
+					backlogEvents.incrementAndGet();
+					backlogBytes.addAndGet(RECORD_HEADER_SIZE + length);
+					oldestTimestamp = Math.min(oldestTimestamp, getRecoveredBacklogTimestamp(payload));
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+
+			log.debug("recovered spill log segment {} [{}]", sequence, path);
+			Segment segment = new Segment(path, buffer, position, Math.min(readPosition, position));
+			segment.oldestTimestamp = oldestTimestamp;
+			return segment;
+		}
+	}
+
+	/**
+	 * the spill time of a recovered event is not known, an event without timestamp holds all the periods back until it is replayed
+	 */
+	private static long getRecoveredBacklogTimestamp(byte[] payload) {
+		try {
+			LocalDateTime timestamp = decode(payload).getListenEvent().getTimestamp();
+			return timestamp != null ? toEpochMillis(timestamp) : 0;
+		} catch (IllegalArgumentException e) {
+			// not replayable, it does not hold any period back
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		try {
+			Files.deleteIfExists(segment.path);
+		} catch (IOException ioe) {
+			log.warn("spill log segment [{}] could not be deleted", segment.path, ioe);
+		}
+	}
+
+	private static byte[] encode(String indexName, String id, ListenEvent listenEvent) {
+		byte[] indexNameBytes = indexName.getBytes(StandardCharsets.UTF_8);
+		byte[] idBytes = id != null ? id.getBytes(StandardCharsets.UTF_8) : null;
+		byte[] listenEventBytes = ListenEventBinaryCodec.encode(listenEvent);
+
+		ByteBuffer buffer = ByteBuffer.allocate(2 + indexNameBytes.length + 2 + (idBytes != null ? idBytes.length : 0) + listenEventBytes.length);
+		buffer.putShort((short) indexNameBytes.length);
+		buffer.put(indexNameBytes);
+		if (idBytes != null) {
+			buffer.putShort((short) idBytes.length);
+			buffer.put(idBytes);
+		} else {
+			buffer.putShort((short) NULL_LENGTH);
+		}
+		buffer.put(listenEventBytes);
+		return buffer.array();
+	}
+
+	private static SpilledListenEvent decode(byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		int indexNameLength = buffer.getShort() & 0xFFFF;
+		String indexName = new String(payload, buffer.position(), indexNameLength, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + indexNameLength);
+
+		String id = null;
+		int idLength = buffer.getShort() & 0xFFFF;
+		if (idLength != NULL_LENGTH) {
+			id = new String(payload, buffer.position(), idLength, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + idLength);
+		}
+
+		ListenEvent listenEvent = ListenEventBinaryCodec.decode(Arrays.copyOfRange(payload, buffer.position(), payload.length));
+		return new SpilledListenEvent(indexName, id, listenEvent);
+	}
+
+	private static class Segment {
+
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+		private int readPosition;
+		private long oldestTimestamp = Long.MAX_VALUE;
+
+		private Segment(Path path, MappedByteBuffer buffer, int writePosition, int readPosition) {
+			this.path = path;
+			this.buffer = buffer;
+			this.writePosition = writePosition;
+			this.readPosition = readPosition;
+		}
+	}
+
+	/**
+	 * events read from a single segment, committed together once they are replayed
+	 */
+	@RequiredArgsConstructor
+	public static class Batch {
+
+		private final Segment segment;
+
+		@Getter
+		private final List<SpilledListenEvent> events;
+
+		@Getter
+		private final int skippedEvents;
+
+		private final int endPosition;
+		private final int bytes;
+
+		public boolean isEmpty() {
+			return events.isEmpty() && skippedEvents == 0;
+		}
+	}
+}
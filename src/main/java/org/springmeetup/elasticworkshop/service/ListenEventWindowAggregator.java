@@ -0,0 +1,145 @@
+package org.springmeetup.elasticworkshop.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.AggregatedUserArtistRankings;
+import org.springmeetup.elasticworkshop.model.ArtistRanking;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * keeps in-memory tumbling window counters of listen events per artist and per user / artist
+ * so that artist rankings and user profiles can be updated without querying listen-event indices.
+ * windows are identified by the listen-event index name of the period they belong to.
+ *
+ * counters of a window are kept per kafka partition, a partition is consumed by a single listener thread at a time
+ * so the threads count in their own counters without contending with each other. events are keyed by user_id,
+ * the counts of a user are kept in the counters of the partition of the user
+ */
+@Service
+@Slf4j
+public class ListenEventWindowAggregator {
+
+	private final Map<String, Map<Integer, WindowCounters>> windowCountersMap = new ConcurrentHashMap<>();
+
+	// counting takes the read lock, draining takes the write lock so that no count is added to a drained window
+	private final ReadWriteLock drainLock = new ReentrantReadWriteLock();
+
+	public void add(String windowName, int partition, ListenEvent listenEvent) {
+		addAll(windowName, partition, Collections.singletonList(listenEvent));
+	}
+
+	/**
+	 * counts the events consumed from the partition, the lock is taken once for all of them
+	 *
+	 * @param windowName
+	 * @param partition
+	 * @param listenEvents
+	 */
+	public void addAll(String windowName, int partition, Collection<ListenEvent> listenEvents) {
+		drainLock.readLock().lock();
+		try {
+			WindowCounters windowCounters = windowCountersMap.computeIfAbsent(windowName, key -> new ConcurrentHashMap<>())
+					.computeIfAbsent(partition, key -> new WindowCounters());
+
+			// uncontended unless the partition has just been reassigned to another thread of this node
+			synchronized (windowCounters) {
+				listenEvents.forEach(windowCounters::add);
+			}
+		} finally {
+			drainLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * removes all the windows except the current one and returns their aggregated counts, oldest window first
+	 *
+	 * @param currentWindowName
+	 * @return
+	 */
+	public List<AggregatedUserArtistRankings> drainClosedWindows(String currentWindowName) {
+		SortedMap<String, Map<Integer, WindowCounters>> closedWindowCountersMap = new TreeMap<>();
+
+		drainLock.writeLock().lock();
+		try {
+			for (String windowName : new ArrayList<>(windowCountersMap.keySet())) {
+				if (!windowName.equals(currentWindowName)) {
+					closedWindowCountersMap.put(windowName, windowCountersMap.remove(windowName));
+				}
+			}
+		} finally {
+			drainLock.writeLock().unlock();
+		}
+
+		List<AggregatedUserArtistRankings> result = new ArrayList<>();
+		closedWindowCountersMap.forEach((windowName, partitionCounters) -> {
+			WindowCounters windowCounters = new WindowCounters();
+			partitionCounters.values().forEach(windowCounters::merge);
+
+			log.info("drained {} artists, {} users of {} partitions from window [{}]", windowCounters.artistCounters.size(),
+					windowCounters.userArtistCounters.size(), partitionCounters.size(), windowName);
+			result.add(windowCounters.toAggregatedUserArtistRankings());
+		});
+
+		return result;
+	}
+
+	/**
+	 * plain maps, a window's counters of a partition are only updated under its monitor and only read after the drain lock
+	 */
+	private static class WindowCounters {
+
+		private final Map<String, long[]> artistCounters = new HashMap<>();
+
+		private final Map<String, Map<String, long[]>> userArtistCounters = new HashMap<>();
+
+		private void add(ListenEvent listenEvent) {
+			artistCounters.computeIfAbsent(listenEvent.getArtistId(), key -> new long[1])[0]++;
+
+			userArtistCounters.computeIfAbsent(listenEvent.getUserId(), key -> new HashMap<>())
+					.computeIfAbsent(listenEvent.getArtistId(), key -> new long[1])[0]++;
+		}
+
+		/**
+		 * users of unkeyed events (sent before events were keyed by user_id) may be counted in more than one partition
+		 */
+		private void merge(WindowCounters other) {
+			synchronized (other) {
+				other.artistCounters.forEach((artistId, counter) ->
+						artistCounters.computeIfAbsent(artistId, key -> new long[1])[0] += counter[0]);
+
+				other.userArtistCounters.forEach((userId, otherArtistCounters) -> {
+					Map<String, long[]> userCounters = userArtistCounters.computeIfAbsent(userId, key -> new HashMap<>());
+					otherArtistCounters.forEach((artistId, counter) ->
+							userCounters.computeIfAbsent(artistId, key -> new long[1])[0] += counter[0]);
+				});
+			}
+		}
+
+		private AggregatedUserArtistRankings toAggregatedUserArtistRankings() {
+			Map<String, Long> artistRankingMap = new HashMap<>();
+			artistCounters.forEach((artistId, counter) -> artistRankingMap.put(artistId, counter[0]));
+
+			Map<String, Set<ArtistRanking>> userArtistRankingMap = new HashMap<>();
+			userArtistCounters.forEach((userId, artistCounters) -> {
+				Set<ArtistRanking> userArtistRankingSet = new HashSet<>();
+				artistCounters.forEach((artistId, counter) -> userArtistRankingSet.add(ArtistRanking.builder()
+						.artistId(artistId)
+						.ranking(counter[0])
+						.build()
+				));
+				userArtistRankingMap.put(userId, userArtistRankingSet);
+			});
+
+			return AggregatedUserArtistRankings.builder()
+					.artistRankingMap(artistRankingMap)
+					.userArtistRankingMap(userArtistRankingMap)
+					.build();
+		}
+	}
+
+}
@@ -0,0 +1,352 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.WindowLease;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * processes the listen event windows aggregated from listen-event indices (or the listen-events data stream) once,
+ * from the last fully processed window recorded in the ranking-window-checkpoint index up to the last closed window.
+ * windows missed by a skipped or slow tick, or while the application was down, are caught up in parallel with bounded concurrency.
+ *
+ * a window is processed only once the grace period has passed after its end (watermark), so that late events are still counted
+ * in their window. each work unit of a window is leased through {@link WindowLeaseService}, a completed lease marks the unit as done,
+ * the checkpoint is advanced only over the windows all of whose units are done. the position of each page applied is recorded in the lease,
+ * a unit whose node failed is taken over after the lease timeout and resumed after the last recorded page, so only the single page
+ * being applied when the node failed can be counted twice.
+ *
+ * listen events spilled to the local spill log while elasticsearch was failing are replayed into the period they were spilled in,
+ * so the period of the oldest spilled event and later ones are not processed until the spill log of this node is replayed.
+ * the spill logs of other nodes are not seen, with several nodes a period may still be checkpointed by a node whose own spill log
+ * is empty while another node replays events of it, those events are not counted.
+ *
+ * metrics
+ *  ranking.windows.processed : windows completed by this node
+ *  ranking.windows.pending : windows behind the watermark that were not processed at the last run
+ *  ranking.windows.throughput : windows per second of the last run
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RankingWindowProcessor implements Constants {
+
+	private final RestHighLevelClient client;
+	private final EventProcessingService eventProcessingService;
+	private final WindowLeaseService windowLeaseService;
+	private final ListenEventSpillLog listenEventSpillLog;
+	private final MeterRegistry meterRegistry;
+
+	private static final String CHECKPOINT_ID = "listen-event";
+
+	// the checkpoint only moves forward, nodes advancing it concurrently cannot move it back
+	private static final String ADVANCE_CHECKPOINT_SCRIPT =
+			"if (ctx._source.window_start == null || ctx._source.window_start < params.window_start) { " +
+			"  ctx._source.window_start = params.window_start; ctx._source.updated_at = params.updated_at; " +
+			"} else { ctx.op = 'noop' }";
+
+	@Value("${ranking-scheduler.coordination.enabled:false}")
+	private boolean coordinationEnabled;
+
+	@Value("${ranking-scheduler.work-units:4}")
+	private int coordinationWorkUnits;
+
+	@Value("${ranking-scheduler.grace-period-ms:10000}")
+	private long gracePeriodMs;
+
+	@Value("${ranking-scheduler.catch-up.max-concurrency:4}")
+	private int catchUpMaxConcurrency;
+
+	@Value("${ranking-scheduler.catch-up.max-windows:1440}")
+	private int catchUpMaxWindows;
+
+	@Value("${elasticsearch.update.retry-on-conflict:3}")
+	private int updateRetryOnConflict;
+
+	private final ReentrantLock processingLock = new ReentrantLock();
+	private final AtomicInteger pendingWindows = new AtomicInteger();
+	private volatile double windowsPerSecond;
+
+	private ExecutorService executorService;
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadCount = new AtomicInteger();
+		executorService = Executors.newFixedThreadPool(catchUpMaxConcurrency, runnable -> {
+			Thread thread = new Thread(runnable, "ranking-window-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		meterRegistry.gauge("ranking.windows.pending", pendingWindows);
+		Gauge.builder("ranking.windows.throughput", this, processor -> processor.windowsPerSecond)
+				.baseUnit("windows/s")
+				.register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * windows missed while the application was down are caught up right away, not at the next tick
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void catchUp() {
+		if (eventProcessingService.streamingAggregationEnabled) {
+			return;
+		}
+
+		CompletableFuture.runAsync(this::processWindows)
+				.exceptionally(throwable -> {
+					log.warn("listen event windows could not be caught up at startup", throwable);
+					return null;
+				});
+	}
+
+	/**
+	 * processes all the windows after the checkpoint which are closed and past the grace period.
+	 * windows counted in memory (streaming aggregation) are drained instead, they are not checkpointed
+	 */
+	public void processWindows() {
+		if (eventProcessingService.streamingAggregationEnabled) {
+			eventProcessingService.updateArtistRankings();
+			return;
+		}
+
+		// a slow run must not overlap with the next tick
+		if (!processingLock.tryLock()) {
+			log.info("listen event windows are still being processed, tick is skipped");
+			return;
+		}
+
+		try {
+			List<LocalDateTime> windowStarts = getUnprocessedWindowStarts();
+			if (windowStarts.isEmpty()) {
+				return;
+			}
+
+			long startTime = System.nanoTime();
+			List<CompletableFuture<Boolean>> windowFutures = new ArrayList<>(windowStarts.size());
+			for (LocalDateTime windowStart : windowStarts) {
+				windowFutures.add(CompletableFuture.supplyAsync(() -> processWindow(windowStart), executorService)
+						.exceptionally(throwable -> {
+							log.warn("window [{}] could not be processed, it is retried at the next tick",
+									eventProcessingService.getListenEventWindowName(windowStart), throwable);
+							return false;
+						}));
+			}
+
+			// the checkpoint is advanced over the leading run of completed windows, later completed windows are
+			// skipped by their done leases when the run is retried
+			LocalDateTime checkpoint = null;
+			int processedWindows = 0;
+			for (int i = 0; i < windowStarts.size(); i++) {
+				if (!windowFutures.get(i).join()) {
+					break;
+				}
+				checkpoint = windowStarts.get(i);
+				processedWindows++;
+			}
+			for (int i = processedWindows; i < windowFutures.size(); i++) {
+				windowFutures.get(i).join();
+			}
+
+			if (checkpoint != null) {
+				advanceCheckpoint(checkpoint);
+			}
+			pendingWindows.set(windowStarts.size() - processedWindows);
+
+			double elapsedSeconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+			windowsPerSecond = windowStarts.size() / elapsedSeconds;
+			if (windowStarts.size() > 1) {
+				log.info("caught up {} of {} listen event windows in {} s, {} windows/s",
+						processedWindows, windowStarts.size(), String.format("%.1f", elapsedSeconds), String.format("%.2f", windowsPerSecond));
+			}
+
+			// read back, the checkpoint may have been advanced further by another node
+			LocalDateTime lastCheckpoint = readCheckpoint();
+			if (lastCheckpoint != null) {
+				windowLeaseService.deleteExpiredLeases(eventProcessingService.getListenEventWindowName(lastCheckpoint));
+			}
+		} finally {
+			processingLock.unlock();
+		}
+	}
+
+	/**
+	 * windows after the checkpoint whose end plus the grace period has passed, oldest first, up to the window of the oldest
+	 * spilled event waiting to be replayed.
+	 * without a checkpoint only the last window is processed, earlier windows may have been processed before checkpoints were kept
+	 */
+	private List<LocalDateTime> getUnprocessedWindowStarts() {
+		int durationInMins = eventProcessingService.listenEventIndexDurationInMins;
+		LocalDateTime watermark = LocalDateTime.now().minusNanos(gracePeriodMs * 1_000_000L);
+		LocalDateTime lastWindowStart = eventProcessingService.getWindowStart(durationInMins, watermark.minusMinutes(durationInMins));
+
+		LocalDateTime oldestSpilledTimestamp = listenEventSpillLog.getOldestBacklogTimestamp();
+		if (oldestSpilledTimestamp != null) {
+			LocalDateTime spilledWindowStart = eventProcessingService.getWindowStart(durationInMins, oldestSpilledTimestamp);
+			if (!spilledWindowStart.isAfter(lastWindowStart)) {
+				log.info("listen event windows from {} wait for the spilled listen events to be replayed", spilledWindowStart);
+				lastWindowStart = eventProcessingService.getWindowStart(durationInMins, spilledWindowStart.minusMinutes(durationInMins));
+			}
+		}
+
+		LocalDateTime checkpoint = readCheckpoint();
+		LocalDateTime firstWindowStart = checkpoint == null
+				? lastWindowStart
+				: eventProcessingService.getWindowStart(durationInMins, checkpoint.plusMinutes(durationInMins));
+
+		LocalDateTime earliestWindowStart = lastWindowStart.minusMinutes((long) (catchUpMaxWindows - 1) * durationInMins);
+		if (firstWindowStart.isBefore(earliestWindowStart)) {
+			log.warn("listen event windows between {} and {} are too old to be caught up and are skipped", firstWindowStart, earliestWindowStart);
+			firstWindowStart = earliestWindowStart;
+		}
+
+		List<LocalDateTime> windowStarts = new ArrayList<>();
+		for (LocalDateTime windowStart = firstWindowStart; !windowStart.isAfter(lastWindowStart);
+		     windowStart = eventProcessingService.getWindowStart(durationInMins, windowStart.plusMinutes(durationInMins))) {
+			windowStarts.add(windowStart);
+		}
+
+		return windowStarts;
+	}
+
+	/**
+	 * processes each work unit of the window that no other node has leased, in random order so that the nodes
+	 * firing at the same time pick different units. the lease is renewed before each page of counts and records the page once it is applied
+	 *
+	 * @return true if all the units of the window are done, by this node or by others
+	 */
+	boolean processWindow(LocalDateTime windowStart) {
+		String windowName = eventProcessingService.getListenEventWindowName(windowStart);
+		int workUnitCount = coordinationEnabled ? coordinationWorkUnits : 1;
+
+		List<Integer> workUnits = new ArrayList<>();
+		for (int workUnit = 0; workUnit < workUnitCount; workUnit++) {
+			workUnits.add(workUnit);
+		}
+		Collections.shuffle(workUnits);
+
+		boolean done = true;
+		for (int workUnit : workUnits) {
+			WindowLease windowLease = windowLeaseService.tryAcquire(windowName, workUnit);
+			if (windowLease == null) {
+				// being processed by another node, the window is complete only once that node completes the unit
+				done &= windowLeaseService.isDone(windowName, workUnit);
+				continue;
+			}
+
+			if (windowLease.getProgress() == null) {
+				log.info("processing work unit {} of window [{}]", workUnit, windowName);
+			} else {
+				log.info("resuming work unit {} of window [{}] after {}", workUnit, windowName, windowLease.getProgress());
+			}
+
+			QueryBuilder workUnitFilter = workUnitCount > 1 ? createWorkUnitFilter(workUnit, workUnitCount) : null;
+			eventProcessingService.updateArtistRankingsOfWindow(windowStart, workUnitFilter, windowLease.getProgress(),
+					() -> windowLeaseService.renew(windowLease),
+					progress -> windowLeaseService.renew(windowLease, progress));
+			windowLeaseService.complete(windowLease);
+		}
+
+		if (done) {
+			meterRegistry.counter("ranking.windows.processed").increment();
+		}
+		return done;
+	}
+
+	/**
+	 * work unit is a range of user buckets, all the events of a user are processed in the same unit.
+	 * artist counts of a unit are partial, they add up to the window's counts since rankings are incremented
+	 */
+	private QueryBuilder createWorkUnitFilter(int workUnit, int workUnitCount) {
+		int fromUserBucket = workUnit * LISTEN_EVENT_USER_BUCKET_COUNT / workUnitCount;
+		int toUserBucket = (workUnit + 1) * LISTEN_EVENT_USER_BUCKET_COUNT / workUnitCount;
+		QueryBuilder userBucketFilter = QueryBuilders.rangeQuery("user_bucket").gte(fromUserBucket).lt(toUserBucket);
+		if (workUnit != 0) {
+			return userBucketFilter;
+		}
+
+		// events indexed before user buckets were introduced belong to the first unit
+		return QueryBuilders.boolQuery()
+				.should(userBucketFilter)
+				.should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery("user_bucket")));
+	}
+
+	/**
+	 * @return start of the last fully processed window, null if no window has been checkpointed yet
+	 */
+	private LocalDateTime readCheckpoint() {
+		try {
+			GetResponse getResponse = client.get(new GetRequest(RANKING_WINDOW_CHECKPOINT_INDEX_NAME, CHECKPOINT_ID), RequestOptions.DEFAULT);
+			if (!getResponse.isExists() || getResponse.getSourceAsMap().get("window_start") == null) {
+				return null;
+			}
+
+			long windowStart = ((Number) getResponse.getSourceAsMap().get("window_start")).longValue();
+			return LocalDateTime.ofInstant(Instant.ofEpochMilli(windowStart), ZoneId.systemDefault());
+		} catch (ElasticsearchStatusException e) {
+			// checkpoint index does not exist yet
+			if (e.status() == RestStatus.NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	private void advanceCheckpoint(LocalDateTime windowStart) {
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("window_start", windowStart.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		parameters.put("updated_at", System.currentTimeMillis());
+
+		UpdateRequest updateRequest = new UpdateRequest(RANKING_WINDOW_CHECKPOINT_INDEX_NAME, CHECKPOINT_ID)
+				.script(new Script(ScriptType.INLINE, "painless", ADVANCE_CHECKPOINT_SCRIPT, parameters))
+				.scriptedUpsert(true)
+				.upsert(Collections.emptyMap())
+				.retryOnConflict(updateRetryOnConflict);
+
+		try {
+			client.update(updateRequest, RequestOptions.DEFAULT);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * collects the search requests arriving within a short window (or up to max batch size requests)
+ * and sends them to elasticsearch as a single multi search request, responses are handed back to the callers one by one.
+ * the queue is bounded, a search submitted while the queue is full or after the coalescer is stopped fails right away.
+ * searches still queued when the coalescer is stopped are failed, no caller is left waiting.
+ *
+ * metrics
+ *  search.coalescer.batch.size : number of searches per multi search request
+ *  search.coalescer.rejected : searches rejected since the queue is full
+ *  search.coalescer.wait : time a search waits in the queue before its batch is sent
+ *  search.coalescer.latency : time from submission to response of a search
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class SearchRequestCoalescer {
+
+	private final RestHighLevelClient client;
+	private final MeterRegistry meterRegistry;
+
+	@Value("${search.coalescer.enabled:false}")
+	private boolean enabled;
+
+	@Value("${search.coalescer.window-ms:2}")
+	private long windowMs;
+
+	@Value("${search.coalescer.max-batch-size:50}")
+	private int maxBatchSize;
+
+	@Value("${search.coalescer.max-queue-size:1000}")
+	private int maxQueueSize;
+
+	private BlockingQueue<PendingSearch> pendingSearchQueue;
+
+	private volatile boolean running;
+
+	private Thread dispatcherThread;
+
+	@PostConstruct
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+
+		pendingSearchQueue = new ArrayBlockingQueue<>(maxQueueSize);
+		running = true;
+		dispatcherThread = new Thread(this::dispatch, "search-coalescer");
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		running = false;
+		if (dispatcherThread == null) {
+			return;
+		}
+
+		dispatcherThread.interrupt();
+		try {
+			dispatcherThread.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		failPendingSearches();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public CompletableFuture<SearchResponse> submit(SearchRequest searchRequest) {
+		CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+		if (!running) {
+			future.completeExceptionally(new IllegalStateException("search coalescer is not running"));
+			return future;
+		}
+
+		if (!pendingSearchQueue.offer(new PendingSearch(searchRequest, future, System.nanoTime()))) {
+			meterRegistry.counter("search.coalescer.rejected").increment();
+			future.completeExceptionally(new RejectedExecutionException("search coalescer queue is full, " + maxQueueSize + " searches are waiting"));
+			return future;
+		}
+
+		// stopped in the meantime, the search may have been queued after the queue was drained
+		if (!running) {
+			failPendingSearches();
+		}
+		return future;
+	}
+
+	private void failPendingSearches() {
+		IllegalStateException failure = new IllegalStateException("search coalescer is stopped");
+		PendingSearch pendingSearch;
+		while ((pendingSearch = pendingSearchQueue.poll()) != null) {
+			pendingSearch.future.completeExceptionally(failure);
+		}
+	}
+
+	private void dispatch() {
+		while (running) {
+			List<PendingSearch> batch = new ArrayList<>(maxBatchSize);
+			try {
+				PendingSearch firstPendingSearch = pendingSearchQueue.poll(100, TimeUnit.MILLISECONDS);
+				if (firstPendingSearch == null) {
+					continue;
+				}
+
+				// the window starts with the first search of the batch
+				batch.add(firstPendingSearch);
+				long windowEnd = firstPendingSearch.submittedAt + TimeUnit.MILLISECONDS.toNanos(windowMs);
+
+				while (batch.size() < maxBatchSize) {
+					PendingSearch pendingSearch = pendingSearchQueue.poll(windowEnd - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (pendingSearch == null) {
+						break;
+					}
+					batch.add(pendingSearch);
+				}
+
+				send(batch);
+			} catch (InterruptedException ie) {
+				// stopped while collecting a batch, its searches are failed as the queued ones are
+				IllegalStateException failure = new IllegalStateException("search coalescer is stopped");
+				batch.forEach(pendingSearch -> pendingSearch.future.completeExceptionally(failure));
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException re) {
+				log.error("search coalescer dispatch failure", re);
+				batch.forEach(pendingSearch -> pendingSearch.future.completeExceptionally(re));
+			}
+		}
+	}
+
+	private void send(List<PendingSearch> batch) {
+		MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+		long sentAt = System.nanoTime();
+		for (PendingSearch pendingSearch : batch) {
+			multiSearchRequest.add(pendingSearch.searchRequest);
+			meterRegistry.timer("search.coalescer.wait").record(sentAt - pendingSearch.submittedAt, TimeUnit.NANOSECONDS);
+		}
+		meterRegistry.summary("search.coalescer.batch.size").record(batch.size());
+
+		// responses are completed on the client's io threads, the dispatcher continues collecting the next batch
+		client.msearchAsync(multiSearchRequest, RequestOptions.DEFAULT, new ActionListener<MultiSearchResponse>() {
+			@Override
+			public void onResponse(MultiSearchResponse multiSearchResponse) {
+				MultiSearchResponse.Item[] items = multiSearchResponse.getResponses();
+				for (int i = 0; i < batch.size(); i++) {
+					if (items[i].isFailure()) {
+						complete(batch.get(i), null, items[i].getFailure());
+					} else {
+						complete(batch.get(i), items[i].getResponse(), null);
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				batch.forEach(pendingSearch -> complete(pendingSearch, null, e));
+			}
+		});
+	}
+
+	private void complete(PendingSearch pendingSearch, SearchResponse searchResponse, Exception failure) {
+		meterRegistry.timer("search.coalescer.latency").record(System.nanoTime() - pendingSearch.submittedAt, TimeUnit.NANOSECONDS);
+
+		if (failure != null) {
+			pendingSearch.future.completeExceptionally(failure);
+		} else {
+			pendingSearch.future.complete(searchResponse);
+		}
+	}
+
+	private static class PendingSearch {
+
+		private final SearchRequest searchRequest;
+		private final CompletableFuture<SearchResponse> future;
+		private final long submittedAt;
+
+		private PendingSearch(SearchRequest searchRequest, CompletableFuture<SearchResponse> future, long submittedAt) {
+			this.searchRequest = searchRequest;
+			this.future = future;
+			this.submittedAt = submittedAt;
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+package org.springmeetup.elasticworkshop.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springmeetup.elasticworkshop.model.WindowLease;
+import org.springmeetup.elasticworkshop.model.WindowProgress;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * leases of the work units of listen event windows, kept as documents in the ranking-window-lease index, so that
+ * each work unit of a window is processed by a single node of the cluster while the units are shared among the nodes.
+ *
+ * a lease document is created with op_type create, only one node succeeds. the lease is renewed as the work progresses,
+ * a lease which is not renewed within the lease timeout (the owner is gone) is taken over by another node, which resumes the work unit
+ * after the last page recorded in the lease by the previous owner.
+ * all writes after the creation are conditional on the sequence number read, so at most one node holds a lease at a time
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WindowLeaseService implements Constants {
+
+	private final RestHighLevelClient client;
+
+	private static final String STATUS_RUNNING = "RUNNING";
+	private static final String STATUS_DONE = "DONE";
+
+	private final String owner = UUID.randomUUID().toString();
+
+	@Value("${ranking-scheduler.lease.timeout-ms:300000}")
+	private long leaseTimeoutMs;
+
+	@Value("${ranking-scheduler.lease.retention-ms:86400000}")
+	private long leaseRetentionMs;
+
+	/**
+	 * @param windowName
+	 * @param workUnit
+	 * @return the lease, null if the work unit is done or is being processed by another node
+	 */
+	public WindowLease tryAcquire(String windowName, int workUnit) {
+		String id = getLeaseId(windowName, workUnit);
+		try {
+			IndexRequest createRequest = new IndexRequest(RANKING_WINDOW_LEASE_INDEX_NAME)
+					.id(id)
+					.opType(DocWriteRequest.OpType.CREATE)
+					.source(createLeaseSource(windowName, workUnit));
+			IndexResponse indexResponse = client.index(createRequest, RequestOptions.DEFAULT);
+			return new WindowLease(id, windowName, workUnit, indexResponse.getSeqNo(), indexResponse.getPrimaryTerm(), null);
+		} catch (ElasticsearchStatusException e) {
+			if (e.status() != RestStatus.CONFLICT) {
+				throw e;
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+
+		return tryTakeOver(id, windowName, workUnit);
+	}
+
+	private WindowLease tryTakeOver(String id, String windowName, int workUnit) {
+		try {
+			GetResponse getResponse = client.get(new GetRequest(RANKING_WINDOW_LEASE_INDEX_NAME, id), RequestOptions.DEFAULT);
+			if (!getResponse.isExists()) {
+				return null;
+			}
+
+			Map<String, Object> source = getResponse.getSourceAsMap();
+			long acquiredAt = ((Number) source.get("acquired_at")).longValue();
+			if (STATUS_DONE.equals(source.get("status")) || System.currentTimeMillis() - acquiredAt < leaseTimeoutMs) {
+				return null;
+			}
+
+			// the progress of the previous owner is kept, so that it is not lost if this node fails before its first page
+			Map<String, Object> takeOverSource = createLeaseSource(windowName, workUnit);
+			WindowProgress progress = toWindowProgress(source.get("progress"));
+			if (progress != null) {
+				takeOverSource.put("progress", source.get("progress"));
+			}
+
+			IndexRequest takeOverRequest = new IndexRequest(RANKING_WINDOW_LEASE_INDEX_NAME)
+					.id(id)
+					.source(takeOverSource)
+					.setIfSeqNo(getResponse.getSeqNo())
+					.setIfPrimaryTerm(getResponse.getPrimaryTerm());
+			IndexResponse indexResponse = client.index(takeOverRequest, RequestOptions.DEFAULT);
+
+			log.warn("lease [{}] of owner [{}] expired and is taken over", id, source.get("owner"));
+			return new WindowLease(id, windowName, workUnit, indexResponse.getSeqNo(), indexResponse.getPrimaryTerm(), progress);
+		} catch (ElasticsearchStatusException e) {
+			// another node took it over first, or no lease has been created yet (lease index does not exist)
+			if (e.status() == RestStatus.CONFLICT || e.status() == RestStatus.NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * @param windowName
+	 * @param workUnit
+	 * @return true if the work unit has been completed by any node
+	 */
+	public boolean isDone(String windowName, int workUnit) {
+		try {
+			GetResponse getResponse = client.get(new GetRequest(RANKING_WINDOW_LEASE_INDEX_NAME, getLeaseId(windowName, workUnit)), RequestOptions.DEFAULT);
+			return getResponse.isExists() && STATUS_DONE.equals(getResponse.getSourceAsMap().get("status"));
+		} catch (ElasticsearchStatusException e) {
+			if (e.status() == RestStatus.NOT_FOUND) {
+				return false;
+			}
+			throw e;
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private WindowProgress toWindowProgress(Object progressSource) {
+		if (!(progressSource instanceof Map)) {
+			return null;
+		}
+
+		Map<String, Object> progress = (Map<String, Object>) progressSource;
+		return WindowProgress.builder()
+				.aggregationName((String) progress.get("aggregation"))
+				.afterKey((Map<String, Object>) progress.get("after_key"))
+				.build();
+	}
+
+	private String getLeaseId(String windowName, int workUnit) {
+		return windowName + "#" + workUnit;
+	}
+
+	/**
+	 * extends the lease, throws an exception if the lease has been taken over by another node in the meantime
+	 * so that the work is not continued by two nodes
+	 *
+	 * @param windowLease
+	 */
+	public void renew(WindowLease windowLease) {
+		Map<String, Object> document = new HashMap<>();
+		document.put("acquired_at", System.currentTimeMillis());
+		conditionalUpdate(windowLease, document);
+	}
+
+	/**
+	 * extends the lease and records the page whose counts have just been applied, a node taking the lease over
+	 * continues after that page
+	 *
+	 * @param windowLease
+	 * @param progress
+	 */
+	public void renew(WindowLease windowLease, WindowProgress progress) {
+		Map<String, Object> progressDocument = new HashMap<>();
+		progressDocument.put("aggregation", progress.getAggregationName());
+		progressDocument.put("after_key", progress.getAfterKey());
+
+		Map<String, Object> document = new HashMap<>();
+		document.put("acquired_at", System.currentTimeMillis());
+		document.put("progress", progressDocument);
+		conditionalUpdate(windowLease, document);
+		windowLease.setProgress(progress);
+	}
+
+	public void complete(WindowLease windowLease) {
+		Map<String, Object> document = new HashMap<>();
+		document.put("status", STATUS_DONE);
+		document.put("completed_at", System.currentTimeMillis());
+		conditionalUpdate(windowLease, document);
+	}
+
+	private void conditionalUpdate(WindowLease windowLease, Map<String, Object> document) {
+		UpdateRequest updateRequest = new UpdateRequest(RANKING_WINDOW_LEASE_INDEX_NAME, windowLease.getId())
+				.doc(document)
+				.setIfSeqNo(windowLease.getSeqNo())
+				.setIfPrimaryTerm(windowLease.getPrimaryTerm());
+
+		try {
+			UpdateResponse updateResponse = client.update(updateRequest, RequestOptions.DEFAULT);
+			windowLease.setSeqNo(updateResponse.getSeqNo());
+			windowLease.setPrimaryTerm(updateResponse.getPrimaryTerm());
+		} catch (ElasticsearchStatusException e) {
+			if (e.status() == RestStatus.CONFLICT) {
+				throw new IllegalStateException("lease [" + windowLease.getId() + "] has been taken over by another node", e);
+			}
+			throw e;
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * deletes the leases older than the retention whose window is at or before the checkpoint.
+	 * a done lease of a window after the checkpoint is what keeps the window from being aggregated again when the run is
+	 * retried, it is kept however old it is. window names sort by their window start
+	 *
+	 * @param checkpointWindowName name of the last fully processed window
+	 */
+	public void deleteExpiredLeases(String checkpointWindowName) {
+		DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(RANKING_WINDOW_LEASE_INDEX_NAME)
+				.setQuery(QueryBuilders.boolQuery()
+						.filter(QueryBuilders.rangeQuery("acquired_at").lt(System.currentTimeMillis() - leaseRetentionMs))
+						.filter(QueryBuilders.rangeQuery("window").lte(checkpointWindowName)))
+				.setAbortOnVersionConflict(false);
+
+		try {
+			client.deleteByQuery(deleteByQueryRequest, RequestOptions.DEFAULT);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	private Map<String, Object> createLeaseSource(String windowName, int workUnit) {
+		Map<String, Object> source = new HashMap<>();
+		source.put("window", windowName);
+		source.put("work_unit", workUnit);
+		source.put("owner", owner);
+		source.put("status", STATUS_RUNNING);
+		source.put("acquired_at", System.currentTimeMillis());
+		return source;
+	}
+}
@@ -0,0 +1,109 @@
+package org.springmeetup.elasticworkshop.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ListenEventBinaryCodecTest {
+
+	private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 9, 1, 12, 30, 15, 123_000_000);
+
+	private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+	@Test
+	void roundTrip() {
+		ListenEvent listenEvent = new ListenEvent("artist-1", "user-ğüş", TIMESTAMP);
+
+		byte[] data = ListenEventBinaryCodec.encode(listenEvent);
+
+		assertThat(ListenEventBinaryCodec.isBinary(data)).isTrue();
+		assertThat(ListenEventBinaryCodec.decode(data)).isEqualTo(listenEvent);
+	}
+
+	@Test
+	void roundTripWithNullIds() {
+		ListenEvent listenEvent = new ListenEvent(null, null, TIMESTAMP);
+
+		assertThat(ListenEventBinaryCodec.decode(ListenEventBinaryCodec.encode(listenEvent))).isEqualTo(listenEvent);
+	}
+
+	@Test
+	void roundTripWithEmptyIds() {
+		ListenEvent listenEvent = new ListenEvent("", "", TIMESTAMP);
+
+		assertThat(ListenEventBinaryCodec.decode(ListenEventBinaryCodec.encode(listenEvent))).isEqualTo(listenEvent);
+	}
+
+	@Test
+	void roundTripWithoutTimestamp() {
+		ListenEvent listenEvent = new ListenEvent("artist-1", "user-1", null);
+
+		byte[] data = ListenEventBinaryCodec.encode(listenEvent);
+
+		assertThat(data).hasSize(3 + 2 + 8 + 2 + 6);
+		assertThat(ListenEventBinaryCodec.decode(data)).isEqualTo(listenEvent);
+	}
+
+	@Test
+	void truncatedInputIsRejected() {
+		byte[] data = ListenEventBinaryCodec.encode(new ListenEvent("artist-1", "user-1", TIMESTAMP));
+
+		for (int length = 1; length < data.length; length++) {
+			byte[] truncated = Arrays.copyOf(data, length);
+			assertThatThrownBy(() -> ListenEventBinaryCodec.decode(truncated))
+					.isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	@Test
+	void unknownVersionIsRejected() {
+		byte[] data = ListenEventBinaryCodec.encode(new ListenEvent("artist-1", "user-1", TIMESTAMP));
+		data[1] = 2;
+
+		assertThatThrownBy(() -> ListenEventBinaryCodec.decode(data))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("version");
+	}
+
+	@Test
+	void tooLongIdIsRejected() {
+		char[] artistId = new char[0xFFFF];
+		Arrays.fill(artistId, 'a');
+
+		assertThatThrownBy(() -> ListenEventBinaryCodec.encode(new ListenEvent(new String(artistId), "user-1", TIMESTAMP)))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void deserializerDetectsTheFormat() {
+		ListenEvent listenEvent = new ListenEvent("artist-1", "user-1", TIMESTAMP);
+		ListenEventDeserializer deserializer = new ListenEventDeserializer(objectMapper);
+
+		byte[] json = new ListenEventSerializer(objectMapper, false).serialize("listen-events", listenEvent);
+		byte[] binary = new ListenEventSerializer(objectMapper, true).serialize("listen-events", listenEvent);
+
+		assertThat(ListenEventBinaryCodec.isBinary(json)).isFalse();
+		assertThat(ListenEventBinaryCodec.isBinary(binary)).isTrue();
+		assertThat(binary.length).isLessThan(json.length);
+		assertThat(deserializer.deserialize("listen-events", json)).isEqualTo(listenEvent);
+		assertThat(deserializer.deserialize("listen-events", binary)).isEqualTo(listenEvent);
+	}
+
+	@Test
+	void deserializerSkipsUnreadableMessages() {
+		ListenEventDeserializer deserializer = new ListenEventDeserializer(objectMapper);
+		byte[] binary = ListenEventBinaryCodec.encode(new ListenEvent("artist-1", "user-1", TIMESTAMP));
+
+		assertThat(deserializer.deserialize("listen-events", Arrays.copyOf(binary, binary.length - 1))).isNull();
+		assertThat(deserializer.deserialize("listen-events", "{\"artist_id\":".getBytes(StandardCharsets.UTF_8))).isNull();
+		assertThat(deserializer.deserialize("listen-events", new byte[0])).isNull();
+		assertThat(deserializer.deserialize("listen-events", null)).isNull();
+	}
+}
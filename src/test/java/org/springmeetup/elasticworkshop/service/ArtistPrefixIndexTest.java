@@ -0,0 +1,113 @@
+package org.springmeetup.elasticworkshop.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springmeetup.elasticworkshop.model.ArtistDocument;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ArtistPrefixIndexTest {
+
+	private ArtistPrefixIndex artistPrefixIndex;
+
+	@BeforeEach
+	void setUp() {
+		artistPrefixIndex = new ArtistPrefixIndex(null, new ObjectMapper());
+		ReflectionTestUtils.setField(artistPrefixIndex, "topK", 3);
+	}
+
+	@Test
+	void lookupReturnsMatchesByRanking() {
+		put("1", "Selena Gomez", 10);
+		put("2", "Sezen Aksu", 30);
+		put("3", "Sertab Erener", 20);
+		put("4", "Tarkan", 50);
+
+		assertThat(lookup("se", 10)).containsExactly("2", "3", "1");
+		assertThat(lookup("se", 2)).containsExactly("2", "3");
+		assertThat(lookup("sez", 10)).containsExactly("2");
+		assertThat(lookup("x", 10)).isEmpty();
+		assertThat(lookup("  ", 10)).isEmpty();
+	}
+
+	@Test
+	void wordSuffixesAndFoldedCharactersMatch() {
+		put("1", "Selena Gomez", 10);
+		put("2", "Müslüm Gürses", 20);
+
+		assertThat(lookup("gom", 10)).containsExactly("1");
+		assertThat(lookup("GURSES", 10)).containsExactly("2");
+		assertThat(lookup("muslum g", 10)).containsExactly("2");
+		assertThat(ArtistPrefixIndex.normalize("  Beyoncé -  Knowles! ")).isEqualTo("beyonce knowles");
+	}
+
+	@Test
+	void topKKeepsTheHighestRankings() {
+		put("1", "Artist One", 10);
+		put("2", "Artist Two", 20);
+		put("3", "Artist Three", 30);
+		put("4", "Artist Four", 5);
+
+		// ranked below the top-k, not kept
+		assertThat(lookup("artist", 10)).containsExactly("3", "2", "1");
+
+		put("5", "Artist Five", 25);
+		assertThat(lookup("artist", 10)).containsExactly("3", "5", "2");
+
+		// a ranking update moves the artist up and evicts the lowest
+		put("1", "Artist One", 40);
+		assertThat(lookup("artist", 10)).containsExactly("1", "3", "5");
+	}
+
+	@Test
+	void lowerRankingDoesNotReplaceAHigherOne() {
+		put("1", "Artist One", 40);
+		put("2", "Artist Two", 30);
+
+		// a stale page of the initial load
+		put("1", "Artist One", 10);
+
+		assertThat(lookup("artist", 10)).containsExactly("1", "2");
+		assertThat(artistPrefixIndex.lookup("artist", 1).get(0).getRanking()).isEqualTo(40L);
+	}
+
+	@Test
+	void artistWithoutIdOrNameIsIgnored() {
+		artistPrefixIndex.put(ArtistDocument.builder().artistName("No Id").ranking(1L).build());
+		artistPrefixIndex.put(ArtistDocument.builder().artistId("1").ranking(1L).build());
+
+		assertThat(lookup("no", 10)).isEmpty();
+	}
+
+	@Test
+	void failedRebuildKeepsTheCurrentIndex() {
+		ReflectionTestUtils.setField(artistPrefixIndex, "loadSlices", 1);
+		put("1", "Artist One", 10);
+
+		// no client, the scroll fails
+		artistPrefixIndex.rebuild();
+		put("2", "Artist Two", 20);
+
+		assertThat(artistPrefixIndex.isLoaded()).isFalse();
+		assertThat(lookup("artist", 10)).containsExactly("2", "1");
+	}
+
+	private void put(String artistId, String artistName, long ranking) {
+		artistPrefixIndex.put(ArtistDocument.builder()
+				.artistId(artistId)
+				.artistName(artistName)
+				.ranking(ranking)
+				.build());
+	}
+
+	private List<String> lookup(String prefix, int size) {
+		return artistPrefixIndex.lookup(prefix, size).stream()
+				.map(ArtistDocument::getArtistId)
+				.collect(Collectors.toList());
+	}
+}
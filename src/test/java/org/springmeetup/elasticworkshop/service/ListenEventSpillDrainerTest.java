@@ -0,0 +1,138 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ListenEventSpillDrainerTest {
+
+	@TempDir
+	Path directory;
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final EventProcessingService eventProcessingService = mock(EventProcessingService.class);
+
+	private ListenEventSpillLog listenEventSpillLog;
+	private ListenEventSpillDrainer listenEventSpillDrainer;
+
+	@BeforeEach
+	void setUp() {
+		listenEventSpillLog = new ListenEventSpillLog(meterRegistry);
+		ReflectionTestUtils.setField(listenEventSpillLog, "enabled", true);
+		ReflectionTestUtils.setField(listenEventSpillLog, "directory", directory.toString());
+		ReflectionTestUtils.setField(listenEventSpillLog, "segmentSizeBytes", 4096);
+		ReflectionTestUtils.setField(listenEventSpillLog, "maxSizeBytes", 4096L * 4);
+		ReflectionTestUtils.setField(listenEventSpillLog, "circuitOpenMs", 30000L);
+
+		listenEventSpillDrainer = new ListenEventSpillDrainer(listenEventSpillLog, eventProcessingService, meterRegistry);
+		ReflectionTestUtils.setField(listenEventSpillDrainer, "drainBatchSize", 10);
+	}
+
+	@Test
+	void temporaryFailureOpensTheCircuitAndKeepsTheEvents() {
+		listenEventSpillLog.init();
+		appendEvents(3);
+		when(eventProcessingService.archiveSpilledListenEvents(anyList()))
+				.thenThrow(new RuntimeException(new ConnectException("connection refused")));
+
+		listenEventSpillDrainer.drain();
+
+		assertThat(listenEventSpillLog.isCircuitOpen()).isTrue();
+		assertThat(listenEventSpillLog.read(10).getEvents()).hasSize(3);
+	}
+
+	@Test
+	void overloadedClusterOpensTheCircuit() {
+		listenEventSpillLog.init();
+		appendEvents(3);
+		when(eventProcessingService.archiveSpilledListenEvents(anyList()))
+				.thenThrow(new ElasticsearchStatusException("rejected", RestStatus.TOO_MANY_REQUESTS));
+
+		listenEventSpillDrainer.drain();
+
+		assertThat(listenEventSpillLog.isCircuitOpen()).isTrue();
+		assertThat(listenEventSpillLog.read(10).getEvents()).hasSize(3);
+	}
+
+	@Test
+	void batchRejectedAsAWholeIsDroppedAndTheCircuitCloses() {
+		listenEventSpillLog.init();
+		appendEvents(25);
+		listenEventSpillLog.openCircuit();
+		when(eventProcessingService.archiveSpilledListenEvents(anyList()))
+				.thenThrow(new ElasticsearchStatusException("bad request", RestStatus.BAD_REQUEST))
+				.thenReturn(0);
+
+		listenEventSpillDrainer.drain();
+
+		assertThat(listenEventSpillLog.isCircuitOpen()).isFalse();
+		assertThat(listenEventSpillLog.read(10).isEmpty()).isTrue();
+		assertThat(meterRegistry.counter("listen-event.spill.events", "result", "dropped").count()).isEqualTo(10);
+		assertThat(meterRegistry.counter("listen-event.spill.events", "result", "drained").count()).isEqualTo(15);
+	}
+
+	@Test
+	void unreadableRecordIsSkipped() throws IOException {
+		writeSegmentWithUnreadableRecord();
+		listenEventSpillLog.init();
+		appendEvents(2);
+		when(eventProcessingService.archiveSpilledListenEvents(anyList())).thenReturn(0);
+
+		listenEventSpillDrainer.drain();
+
+		assertThat(listenEventSpillLog.read(10).isEmpty()).isTrue();
+		assertThat(meterRegistry.counter("listen-event.spill.events", "result", "dropped").count()).isEqualTo(1);
+		assertThat(meterRegistry.counter("listen-event.spill.events", "result", "drained").count()).isEqualTo(2);
+	}
+
+	private void appendEvents(int count) {
+		for (int i = 0; i < count; i++) {
+			assertThat(listenEventSpillLog.append("listen-event-2021-09-01-12-00", "id-" + i, ListenEvent.builder()
+					.artistId("artist-" + i)
+					.userId("user-" + i)
+					.timestamp(LocalDateTime.of(2021, 9, 1, 12, 0))
+					.build())).isTrue();
+		}
+	}
+
+	/**
+	 * a record with a valid crc whose listen event is of an unknown version
+	 */
+	private void writeSegmentWithUnreadableRecord() throws IOException {
+		byte[] indexName = "listen-event-2021-09-01-12-00".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(2 + indexName.length + 2 + 3);
+		payload.putShort((short) indexName.length);
+		payload.put(indexName);
+		payload.putShort((short) 0xFFFF);
+		payload.put((byte) 0xB1).put((byte) 99).put((byte) 0);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+
+		ByteBuffer segment = ByteBuffer.allocate(4096);
+		segment.putInt(4);
+		segment.putInt(payload.capacity());
+		segment.putInt((int) crc.getValue());
+		segment.put(payload.array());
+		Files.write(directory.resolve("segment-00000000000000000000.log"), segment.array());
+	}
+}
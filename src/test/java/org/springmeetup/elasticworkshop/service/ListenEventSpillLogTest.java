@@ -0,0 +1,171 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+import org.springmeetup.elasticworkshop.model.SpilledListenEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ListenEventSpillLogTest {
+
+	private static final int SEGMENT_SIZE_BYTES = 4096;
+	private static final String INDEX_NAME = "listen-event-2021-09-01-12-00";
+	private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 9, 1, 12, 0, 30);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void appendedEventsAreReadInOrderUntilCommitted() {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		appendEvents(listenEventSpillLog, 0, 5);
+
+		ListenEventSpillLog.Batch batch = listenEventSpillLog.read(3);
+		assertThat(ids(batch.getEvents())).containsExactly("id-0", "id-1", "id-2");
+		assertThat(batch.getEvents().get(0)).isEqualTo(new SpilledListenEvent(INDEX_NAME, "id-0", listenEvent(0)));
+
+		// not committed, read again
+		assertThat(ids(listenEventSpillLog.read(3).getEvents())).containsExactly("id-0", "id-1", "id-2");
+
+		listenEventSpillLog.commit(batch);
+		assertThat(ids(listenEventSpillLog.read(10).getEvents())).containsExactly("id-3", "id-4");
+	}
+
+	@Test
+	void eventWithoutIdIsKept() {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		assertThat(listenEventSpillLog.append(INDEX_NAME, null, listenEvent(0))).isTrue();
+
+		assertThat(listenEventSpillLog.read(10).getEvents())
+				.containsExactly(new SpilledListenEvent(INDEX_NAME, null, listenEvent(0)));
+	}
+
+	@Test
+	void backlogIsRecoveredAfterReopen() {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		appendEvents(listenEventSpillLog, 0, 100);
+		listenEventSpillLog.commit(listenEventSpillLog.read(40));
+		listenEventSpillLog.close();
+
+		ListenEventSpillLog reopenedSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		List<String> ids = ids(readAll(reopenedSpillLog));
+
+		assertThat(ids).hasSize(60);
+		assertThat(ids.get(0)).isEqualTo("id-40");
+		assertThat(ids.get(59)).isEqualTo("id-99");
+		assertThat(reopenedSpillLog.getOldestBacklogTimestamp()).isNull();
+	}
+
+	@Test
+	void tornRecordEndsTheSegment() throws IOException {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		appendEvents(listenEventSpillLog, 0, 3);
+		listenEventSpillLog.close();
+
+		// a byte of the payload of the third record is not the one written
+		Path segmentPath = segmentPaths().get(0);
+		byte[] segment = Files.readAllBytes(segmentPath);
+		int recordSize = 8 + ByteBuffer.wrap(segment).getInt(4);
+		segment[4 + 2 * recordSize + 8 + 2] ^= 0x7F;
+		Files.write(segmentPath, segment);
+
+		ListenEventSpillLog reopenedSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		assertThat(ids(readAll(reopenedSpillLog))).containsExactly("id-0", "id-1");
+
+		// new events are appended after the last valid record
+		appendEvents(reopenedSpillLog, 3, 1);
+		assertThat(ids(reopenedSpillLog.read(10).getEvents())).containsExactly("id-3");
+	}
+
+	@Test
+	void eventsAreRejectedWhileTheLogIsFull() throws IOException {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 2L);
+
+		int appended = 0;
+		while (listenEventSpillLog.append(INDEX_NAME, "id-" + appended, listenEvent(appended))) {
+			appended++;
+		}
+
+		assertThat(appended).isGreaterThan(0);
+		assertThat(segmentPaths()).hasSize(2);
+		assertThat(listenEventSpillLog.append(INDEX_NAME, "id-rejected", listenEvent(0))).isFalse();
+
+		// fully replayed segments are deleted, which makes room again
+		assertThat(readAll(listenEventSpillLog)).hasSize(appended);
+		listenEventSpillLog.read(1);
+		assertThat(segmentPaths()).hasSize(1);
+		assertThat(listenEventSpillLog.append(INDEX_NAME, "id-accepted", listenEvent(0))).isTrue();
+	}
+
+	@Test
+	void oldestBacklogTimestampIsKeptUntilReplayed() {
+		ListenEventSpillLog listenEventSpillLog = openSpillLog(SEGMENT_SIZE_BYTES * 4L);
+		assertThat(listenEventSpillLog.getOldestBacklogTimestamp()).isNull();
+
+		appendEvents(listenEventSpillLog, 0, 3);
+		assertThat(listenEventSpillLog.getOldestBacklogTimestamp()).isEqualTo(TIMESTAMP);
+
+		readAll(listenEventSpillLog);
+		assertThat(listenEventSpillLog.getOldestBacklogTimestamp()).isNull();
+	}
+
+	private ListenEventSpillLog openSpillLog(long maxSizeBytes) {
+		ListenEventSpillLog listenEventSpillLog = new ListenEventSpillLog(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(listenEventSpillLog, "enabled", true);
+		ReflectionTestUtils.setField(listenEventSpillLog, "directory", directory.toString());
+		ReflectionTestUtils.setField(listenEventSpillLog, "segmentSizeBytes", SEGMENT_SIZE_BYTES);
+		ReflectionTestUtils.setField(listenEventSpillLog, "maxSizeBytes", maxSizeBytes);
+		listenEventSpillLog.init();
+		return listenEventSpillLog;
+	}
+
+	private void appendEvents(ListenEventSpillLog listenEventSpillLog, int first, int count) {
+		for (int i = first; i < first + count; i++) {
+			assertThat(listenEventSpillLog.append(INDEX_NAME, "id-" + i, listenEvent(i))).isTrue();
+		}
+	}
+
+	/**
+	 * reads and commits batches until the backlog is empty
+	 */
+	private List<SpilledListenEvent> readAll(ListenEventSpillLog listenEventSpillLog) {
+		List<SpilledListenEvent> events = new ArrayList<>();
+		ListenEventSpillLog.Batch batch;
+		while (!(batch = listenEventSpillLog.read(7)).isEmpty()) {
+			events.addAll(batch.getEvents());
+			listenEventSpillLog.commit(batch);
+		}
+		return events;
+	}
+
+	private List<Path> segmentPaths() throws IOException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			return paths.sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static ListenEvent listenEvent(int i) {
+		return ListenEvent.builder()
+				.artistId("artist-" + i)
+				.userId("user-" + i)
+				.timestamp(TIMESTAMP.plusSeconds(i))
+				.build();
+	}
+
+	private static List<String> ids(List<SpilledListenEvent> events) {
+		return events.stream().map(SpilledListenEvent::getId).collect(Collectors.toList());
+	}
+}
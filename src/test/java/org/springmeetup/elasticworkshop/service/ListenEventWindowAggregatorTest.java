@@ -0,0 +1,110 @@
+package org.springmeetup.elasticworkshop.service;
+
+import org.junit.jupiter.api.Test;
+import org.springmeetup.elasticworkshop.model.AggregatedUserArtistRankings;
+import org.springmeetup.elasticworkshop.model.ArtistRanking;
+import org.springmeetup.elasticworkshop.model.ListenEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class ListenEventWindowAggregatorTest {
+
+	private static final String FIRST_WINDOW = "listen-event-2021-09-01-12-00";
+	private static final String SECOND_WINDOW = "listen-event-2021-09-01-12-01";
+	private static final String CURRENT_WINDOW = "listen-event-2021-09-01-12-02";
+
+	private final ListenEventWindowAggregator listenEventWindowAggregator = new ListenEventWindowAggregator();
+
+	@Test
+	void countsOfThePartitionsAreMerged() {
+		listenEventWindowAggregator.addAll(FIRST_WINDOW, 0, Arrays.asList(
+				listenEvent("artist-1", "user-1"),
+				listenEvent("artist-1", "user-1"),
+				listenEvent("artist-2", "user-1")));
+		listenEventWindowAggregator.addAll(FIRST_WINDOW, 1, Arrays.asList(
+				listenEvent("artist-1", "user-2"),
+				listenEvent("artist-3", "user-2")));
+		// an unkeyed event of user-1 consumed from another partition
+		listenEventWindowAggregator.add(FIRST_WINDOW, 2, listenEvent("artist-1", "user-1"));
+
+		List<AggregatedUserArtistRankings> drained = listenEventWindowAggregator.drainClosedWindows(CURRENT_WINDOW);
+
+		assertThat(drained).hasSize(1);
+		assertThat(drained.get(0).getArtistRankingMap())
+				.containsOnly(entry("artist-1", 4L), entry("artist-2", 1L), entry("artist-3", 1L));
+		assertThat(toCountMap(drained.get(0).getUserArtistRankingMap().get("user-1")))
+				.containsOnly(entry("artist-1", 3L), entry("artist-2", 1L));
+		assertThat(toCountMap(drained.get(0).getUserArtistRankingMap().get("user-2")))
+				.containsOnly(entry("artist-1", 1L), entry("artist-3", 1L));
+	}
+
+	@Test
+	void closedWindowsAreDrainedOldestFirstAndOnlyOnce() {
+		listenEventWindowAggregator.add(SECOND_WINDOW, 0, listenEvent("artist-2", "user-1"));
+		listenEventWindowAggregator.add(FIRST_WINDOW, 1, listenEvent("artist-1", "user-1"));
+		listenEventWindowAggregator.add(CURRENT_WINDOW, 0, listenEvent("artist-3", "user-1"));
+
+		List<AggregatedUserArtistRankings> drained = listenEventWindowAggregator.drainClosedWindows(CURRENT_WINDOW);
+
+		assertThat(drained).extracting(AggregatedUserArtistRankings::getArtistRankingMap)
+				.containsExactly(Collections.singletonMap("artist-1", 1L), Collections.singletonMap("artist-2", 1L));
+		assertThat(listenEventWindowAggregator.drainClosedWindows(CURRENT_WINDOW)).isEmpty();
+
+		// the current window is drained once it is closed
+		assertThat(listenEventWindowAggregator.drainClosedWindows("listen-event-2021-09-01-12-03"))
+				.extracting(AggregatedUserArtistRankings::getArtistRankingMap)
+				.containsExactly(Collections.singletonMap("artist-3", 1L));
+	}
+
+	@Test
+	void partitionsCountedConcurrentlyAddUp() {
+		int partitions = 4;
+		int eventsPerPartition = 10000;
+
+		ExecutorService executorService = Executors.newFixedThreadPool(partitions);
+		try {
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (int partition = 0; partition < partitions; partition++) {
+				int consumedPartition = partition;
+				futures.add(CompletableFuture.runAsync(() -> {
+					for (int i = 0; i < eventsPerPartition; i++) {
+						listenEventWindowAggregator.add(FIRST_WINDOW, consumedPartition,
+								listenEvent("artist-" + (i % 10), "user-" + consumedPartition));
+					}
+				}, executorService));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executorService.shutdown();
+		}
+
+		AggregatedUserArtistRankings drained = listenEventWindowAggregator.drainClosedWindows(CURRENT_WINDOW).get(0);
+
+		assertThat(drained.getArtistRankingMap()).hasSize(10);
+		assertThat(drained.getArtistRankingMap().values()).allMatch(count -> count == (long) partitions * eventsPerPartition / 10);
+		assertThat(drained.getUserArtistRankingMap()).hasSize(partitions);
+	}
+
+	private static ListenEvent listenEvent(String artistId, String userId) {
+		return ListenEvent.builder()
+				.artistId(artistId)
+				.userId(userId)
+				.build();
+	}
+
+	private static Map<String, Long> toCountMap(Set<ArtistRanking> artistRankings) {
+		return artistRankings.stream().collect(Collectors.toMap(ArtistRanking::getArtistId, ArtistRanking::getRanking));
+	}
+}
@@ -0,0 +1,117 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springmeetup.elasticworkshop.model.WindowLease;
+import org.springmeetup.elasticworkshop.model.WindowProgress;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RankingWindowProcessorTest {
+
+	private static final LocalDateTime WINDOW_START = LocalDateTime.of(2021, 9, 1, 12, 0);
+
+	// pages of artist counts of the window, in the order of the composite aggregation
+	private static final List<Map<String, Long>> PAGES = Arrays.asList(
+			Collections.singletonMap("artist-1", 3L),
+			Collections.singletonMap("artist-2", 5L),
+			Collections.singletonMap("artist-3", 7L),
+			Collections.singletonMap("artist-4", 11L));
+
+	private final EventProcessingService eventProcessingService = mock(EventProcessingService.class);
+	private final WindowLeaseService windowLeaseService = mock(WindowLeaseService.class);
+
+	private final Map<String, Long> appliedCounts = new HashMap<>();
+	private final AtomicReference<WindowProgress> recordedProgress = new AtomicReference<>();
+	private final AtomicBoolean done = new AtomicBoolean();
+
+	private RankingWindowProcessor rankingWindowProcessor;
+
+	@BeforeEach
+	void setUp() {
+		rankingWindowProcessor = new RankingWindowProcessor(null, eventProcessingService, windowLeaseService,
+				mock(ListenEventSpillLog.class), new SimpleMeterRegistry());
+
+		when(eventProcessingService.getListenEventWindowName(WINDOW_START)).thenReturn("listen-event-2021.09.01-12.00");
+
+		// the lease document: a running lease is handed out again as if its owner had timed out, with the progress recorded
+		when(windowLeaseService.tryAcquire(anyString(), anyInt())).thenAnswer(invocation -> done.get()
+				? null
+				: new WindowLease("lease", invocation.getArgument(0), invocation.getArgument(1), 0, 0, recordedProgress.get()));
+		when(windowLeaseService.isDone(anyString(), anyInt())).thenAnswer(invocation -> done.get());
+		doAnswer(invocation -> {
+			recordedProgress.set(invocation.getArgument(1));
+			return null;
+		}).when(windowLeaseService).renew(any(WindowLease.class), any(WindowProgress.class));
+		doAnswer(invocation -> {
+			done.set(true);
+			return null;
+		}).when(windowLeaseService).complete(any(WindowLease.class));
+	}
+
+	@Test
+	void workUnitTakenOverHalfwayIsResumedAfterTheLastAppliedPage() {
+		// the first node fails after applying two pages
+		mockWindowPages(2);
+		assertThatThrownBy(() -> rankingWindowProcessor.processWindow(WINDOW_START))
+				.isInstanceOf(IllegalStateException.class);
+		assertThat(done.get()).isFalse();
+		assertThat(appliedCounts).containsOnlyKeys("artist-1", "artist-2");
+
+		// another node takes the lease over
+		mockWindowPages(-1);
+		assertThat(rankingWindowProcessor.processWindow(WINDOW_START)).isTrue();
+
+		Map<String, Long> expectedCounts = new HashMap<>();
+		PAGES.forEach(expectedCounts::putAll);
+		assertThat(appliedCounts).isEqualTo(expectedCounts);
+		assertThat(rankingWindowProcessor.processWindow(WINDOW_START)).isTrue();
+		assertThat(appliedCounts).isEqualTo(expectedCounts);
+	}
+
+	/**
+	 * pages the window like the composite aggregation does, from the page after resumeAfter
+	 *
+	 * @param failAfterPages number of pages applied before the node fails, -1 to never fail
+	 */
+	@SuppressWarnings("unchecked")
+	private void mockWindowPages(int failAfterPages) {
+		doAnswer(invocation -> {
+			WindowProgress resumeAfter = invocation.getArgument(2);
+			Runnable beforePage = invocation.getArgument(3);
+			Consumer<WindowProgress> afterPage = invocation.getArgument(4);
+
+			int firstPage = resumeAfter == null ? 0 : ((Number) resumeAfter.getAfterKey().get("page")).intValue() + 1;
+			for (int page = firstPage; page < PAGES.size(); page++) {
+				if (page == failAfterPages) {
+					throw new IllegalStateException("node failed");
+				}
+
+				beforePage.run();
+				PAGES.get(page).forEach((artistId, count) -> appliedCounts.merge(artistId, count, Long::sum));
+				afterPage.accept(new WindowProgress("artist_rankings", Collections.singletonMap("page", page)));
+			}
+			return null;
+		}).when(eventProcessingService).updateArtistRankingsOfWindow(eq(WINDOW_START), isNull(), any(), any(Runnable.class), any(Consumer.class));
+	}
+}
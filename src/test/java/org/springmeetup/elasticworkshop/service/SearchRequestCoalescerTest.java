@@ -0,0 +1,59 @@
+package org.springmeetup.elasticworkshop.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SearchRequestCoalescerTest {
+
+	@Test
+	void searchesWaitingAtStopAreFailed() {
+		// a long window keeps the searches in the batch being collected
+		SearchRequestCoalescer searchRequestCoalescer = createSearchRequestCoalescer(60000, 10);
+		searchRequestCoalescer.start();
+
+		CompletableFuture<SearchResponse> first = searchRequestCoalescer.submit(new SearchRequest("content"));
+		CompletableFuture<SearchResponse> second = searchRequestCoalescer.submit(new SearchRequest("content"));
+		searchRequestCoalescer.stop();
+
+		assertThat(first).isCompletedExceptionally();
+		assertThat(second).isCompletedExceptionally();
+		assertThatThrownBy(() -> searchRequestCoalescer.submit(new SearchRequest("content")).join())
+				.isInstanceOf(CompletionException.class)
+				.hasCauseInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void searchesAreRejectedWhileTheQueueIsFull() {
+		// no dispatcher takes the searches off the queue
+		SearchRequestCoalescer searchRequestCoalescer = createSearchRequestCoalescer(60000, 1);
+		ReflectionTestUtils.setField(searchRequestCoalescer, "pendingSearchQueue", new ArrayBlockingQueue<>(1));
+		ReflectionTestUtils.setField(searchRequestCoalescer, "running", true);
+
+		CompletableFuture<SearchResponse> queued = searchRequestCoalescer.submit(new SearchRequest("content"));
+
+		assertThat(queued).isNotDone();
+		assertThatThrownBy(() -> searchRequestCoalescer.submit(new SearchRequest("content")).join())
+				.isInstanceOf(CompletionException.class)
+				.hasCauseInstanceOf(RejectedExecutionException.class);
+	}
+
+	private SearchRequestCoalescer createSearchRequestCoalescer(long windowMs, int maxQueueSize) {
+		SearchRequestCoalescer searchRequestCoalescer = new SearchRequestCoalescer(null, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(searchRequestCoalescer, "enabled", true);
+		ReflectionTestUtils.setField(searchRequestCoalescer, "windowMs", windowMs);
+		ReflectionTestUtils.setField(searchRequestCoalescer, "maxBatchSize", 50);
+		ReflectionTestUtils.setField(searchRequestCoalescer, "maxQueueSize", maxQueueSize);
+		return searchRequestCoalescer;
+	}
+}